@@ -0,0 +1,255 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Index of crypt files in a local SQLite database. Scanning a directory only reads the header and the checksum at
+ * the end of each file, so downstream jobs can select backups by querying the catalog instead of opening every file.
+ * Files whose size and modification time did not change since the last scan are skipped.
+ */
+public class BackupCatalog implements AutoCloseable {
+
+	private static Logger logger = LogManager.getLogger(BackupCatalog.class);
+
+	private static final String COLUMNS = "path, size, mtime, cipher_type, app_version, backup_version, feature_table, "
+			+ "feature_flags, checksum, error";
+
+	private final Connection connection;
+	private int threads = TaskExecutors.defaultIoThreads();
+
+	private BackupCatalog(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Opens the catalog, creating it if it does not exist.
+	 */
+	public static BackupCatalog open(Path databasePath) throws SQLException {
+		Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", databasePath));
+		try(Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS backups ("
+					+ "path TEXT PRIMARY KEY, "
+					+ "size INTEGER NOT NULL, "
+					+ "mtime INTEGER NOT NULL, "
+					+ "cipher_type TEXT, "
+					+ "app_version TEXT, "
+					+ "backup_version INTEGER, "
+					+ "feature_table INTEGER, "
+					+ "feature_flags INTEGER, "
+					+ "checksum TEXT, "
+					+ "error TEXT, "
+					+ "scanned_at INTEGER NOT NULL)");
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS backups_app_version ON backups(app_version)");
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS backups_cipher_type ON backups(cipher_type)");
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS backups_checksum ON backups(checksum)");
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS backups_mtime ON backups(mtime)");
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		return new BackupCatalog(connection);
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Sets the number of threads reading headers during {@link #scan(Path)}.
+	 */
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Records all crypt files below the directory. Files that did not change since the last scan are skipped, entries
+	 * of files below the directory that no longer exist are removed.
+	 * @return number of added or updated entries
+	 */
+	public int scan(Path directory) throws WhatsappBackupReaderException, SQLException {
+		Path root = directory.toAbsolutePath().normalize();
+		List<Path> files = CryptFiles.list(root);
+
+		Map<String, long[]> known = new HashMap<String, long[]>();
+		String prefix = root.toString().endsWith(root.getFileSystem().getSeparator())
+				? root.toString() : root + root.getFileSystem().getSeparator();
+		try(PreparedStatement pstmt = connection.prepareStatement(
+				"SELECT path, size, mtime FROM backups WHERE substr(path, 1, ?) = ?")) {
+			pstmt.setInt(1, prefix.length());
+			pstmt.setString(2, prefix);
+			try(ResultSet rs = pstmt.executeQuery()) {
+				while(rs.next()) {
+					known.put(rs.getString(1), new long[] { rs.getLong(2), rs.getLong(3) });
+				}
+			}
+		}
+
+		List<Callable<CatalogEntry>> tasks = new ArrayList<Callable<CatalogEntry>>();
+		Set<String> existing = new HashSet<String>();
+		for(Path file : files) {
+			existing.add(file.toString());
+			long[] sizeAndTime = known.get(file.toString());
+			tasks.add(() -> sizeAndTime == null ? read(file) : readIfChanged(file, sizeAndTime[0], sizeAndTime[1]));
+		}
+
+		List<CatalogEntry> changed = new ArrayList<CatalogEntry>();
+		ExecutorService executor = TaskExecutors.newIoExecutor("backup-catalog", threads);
+		try {
+			for(Future<CatalogEntry> future : executor.invokeAll(tasks)) {
+				CatalogEntry entry = future.get();
+				if(entry != null) {
+					changed.add(entry);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while scanning " + directory, e);
+		} catch (ExecutionException e) {
+			throw new WhatsappBackupReaderException("Cannot scan " + directory, e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+
+		List<String> removed = new ArrayList<String>();
+		for(String path : known.keySet()) {
+			if(!existing.contains(path)) {
+				removed.add(path);
+			}
+		}
+
+		store(changed, removed);
+		logger.info("Scanned {} files in {}: {} added or updated, {} removed", files.size(), root, changed.size(),
+				removed.size());
+		return changed.size();
+	}
+
+	/**
+	 * Selects entries with an SQL condition on the columns of the backups table, e.g.
+	 * {@code query("cipher_type = ? AND app_version LIKE ?", "C15", "2.23.%")}.
+	 */
+	public List<CatalogEntry> query(String condition, Object... params) throws SQLException {
+		List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+		try(PreparedStatement pstmt = connection.prepareStatement(
+				"SELECT " + COLUMNS + " FROM backups WHERE " + condition + " ORDER BY path")) {
+			for(int i = 0; i < params.length; i++) {
+				pstmt.setObject(i + 1, params[i]);
+			}
+			try(ResultSet rs = pstmt.executeQuery()) {
+				while(rs.next()) {
+					int backupVersion = rs.getInt(6);
+					if(rs.wasNull()) {
+						backupVersion = -1;
+					}
+					entries.add(new CatalogEntry(Paths.get(rs.getString(1)), rs.getLong(2), rs.getLong(3),
+							rs.getString(4), rs.getString(5), backupVersion, rs.getInt(7) != 0, rs.getLong(8),
+							rs.getString(9), rs.getString(10)));
+				}
+			}
+		}
+		return entries;
+	}
+
+	/**
+	 * @return all entries
+	 */
+	public List<CatalogEntry> list() throws SQLException {
+		return query("1 = 1");
+	}
+
+	@Override
+	public void close() throws SQLException {
+		connection.close();
+	}
+
+	private static CatalogEntry readIfChanged(Path file, long size, long modified) throws IOException {
+		if(Files.size(file) == size && Files.getLastModifiedTime(file).toMillis() == modified) {
+			return null;
+		}
+		return read(file);
+	}
+
+	private static CatalogEntry read(Path file) throws IOException {
+		long size = Files.size(file);
+		long modified = Files.getLastModifiedTime(file).toMillis();
+
+		BackupHeader header;
+		try {
+			header = BackupHeader.probe(file);
+		} catch (WhatsappBackupReaderException e) {
+			return new CatalogEntry(file, size, modified, null, null, -1, false, 0, CryptFiles.readChecksum(file, size),
+					e.getMessage());
+		}
+
+		return new CatalogEntry(file, size, modified, header.getCipherType().name(), header.getAppVersion(),
+				header.getBackupVersion(), header.hasFeatureTable(), header.getFeatureFlags(),
+				CryptFiles.readChecksum(file, size), null);
+	}
+
+	private void store(List<CatalogEntry> changed, List<String> removed) throws SQLException {
+		boolean autoCommit = connection.getAutoCommit();
+		connection.setAutoCommit(false);
+		try(PreparedStatement upsert = connection.prepareStatement(
+					"INSERT OR REPLACE INTO backups (" + COLUMNS + ", scanned_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+				PreparedStatement delete = connection.prepareStatement("DELETE FROM backups WHERE path = ?")) {
+			long now = System.currentTimeMillis();
+			for(CatalogEntry entry : changed) {
+				upsert.setString(1, entry.getPath().toString());
+				upsert.setLong(2, entry.getSize());
+				upsert.setLong(3, entry.getModified());
+				upsert.setString(4, entry.getCipherType());
+				upsert.setString(5, entry.getAppVersion());
+				if(entry.getBackupVersion() >= 0) {
+					upsert.setInt(6, entry.getBackupVersion());
+				} else {
+					upsert.setNull(6, Types.INTEGER);
+				}
+				upsert.setInt(7, entry.hasFeatureTable() ? 1 : 0);
+				upsert.setLong(8, entry.getFeatureFlags());
+				upsert.setString(9, entry.getChecksum());
+				upsert.setString(10, entry.getError());
+				upsert.setLong(11, now);
+				upsert.addBatch();
+			}
+			upsert.executeBatch();
+
+			for(String path : removed) {
+				delete.setString(1, path);
+				delete.addBatch();
+			}
+			delete.executeBatch();
+
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(autoCommit);
+		}
+	}
+}
@@ -0,0 +1,347 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decrypts crypt files chunk by chunk like {@link DecryptionMode#STREAMING}. Unlike {@link WhatsappBackupReader}
+ * it holds no state of a decryption, the files and the key are passed per call, so one instance can be shared by
+ * all threads. The ciphers, md5 digest, inflater and buffers of a call are kept in a pool shared by all instances
+ * for the next call, which saves the allocations and provider lookups when many files are decrypted. The pool
+ * holds one set per processor; the inflaters of further sets are ended right away, so their native memory does
+ * not wait for the garbage collector.
+ */
+public class BackupDecryptor {
+
+	private static Logger logger = LogManager.getLogger(BackupDecryptor.class);
+
+	static final int LENGTH_CHECKSUM = 16;
+	static final int LENGTH_AUTHENTICATION_TAG = 16;
+	static final int LENGTH_TRAILER = LENGTH_AUTHENTICATION_TAG + LENGTH_CHECKSUM;
+
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+
+	private static final BlockingQueue<Resources> pool = new ArrayBlockingQueue<Resources>(
+			Runtime.getRuntime().availableProcessors());
+
+	private final int chunkSize;
+	private final FsyncPolicy fsyncPolicy;
+
+	public BackupDecryptor() {
+		this(DEFAULT_CHUNK_SIZE, FsyncPolicy.AT_END);
+	}
+
+	/**
+	 * @param chunkSize number of bytes read from the crypt file at once
+	 */
+	public BackupDecryptor(int chunkSize) {
+		this(chunkSize, FsyncPolicy.AT_END);
+	}
+
+	/**
+	 * @param chunkSize number of bytes read from the crypt file at once
+	 * @param fsyncPolicy when the output is forced to the storage device
+	 */
+	public BackupDecryptor(int chunkSize, FsyncPolicy fsyncPolicy) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
+		}
+		this.chunkSize = chunkSize;
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	/**
+	 * Instances used by one call at a time, reset before each use.
+	 */
+	private static class Resources {
+		private Cipher ecb;
+		private Cipher ctr;
+		private MessageDigest md5;
+		private Inflater zlib;
+		private byte[] window;
+		private byte[] chunk;
+		private byte[] buf;
+
+		GcmDecryptor gcm(BackupKey key, byte[] iv) throws WhatsappBackupReaderException {
+			if(ecb == null) {
+				ecb = GcmDecryptor.newCipher(GcmDecryptor.ECB);
+				ctr = GcmDecryptor.newCipher(GcmDecryptor.CTR);
+			}
+			return new GcmDecryptor(key.getAesKey(), iv, ecb, ctr);
+		}
+
+		MessageDigest md5() throws WhatsappBackupReaderException {
+			if(md5 == null) {
+				md5 = newMd5();
+			}
+			md5.reset();
+			return md5;
+		}
+
+		Inflater inflater() {
+			if(zlib == null) {
+				zlib = new Inflater(false);
+			}
+			zlib.reset();
+			return zlib;
+		}
+
+		/**
+		 * @return the buffer of the trailer stream, holding a chunk and the trailer
+		 */
+		byte[] window(int chunkSize) {
+			if(window == null || window.length != chunkSize + LENGTH_TRAILER) {
+				window = new byte[chunkSize + LENGTH_TRAILER];
+			}
+			return window;
+		}
+
+		byte[] chunk(int chunkSize) {
+			if(chunk == null || chunk.length != chunkSize) {
+				chunk = new byte[chunkSize];
+			}
+			return chunk;
+		}
+
+		byte[] buffer() {
+			if(buf == null) {
+				buf = new byte[INFLATE_BUFFER_SIZE];
+			}
+			return buf;
+		}
+	}
+
+	/**
+	 * Writes the decrypted database to a temporary file next to the output path, which is renamed to the output
+	 * path once checksum and authentication tag matched. Both are only known after the last chunk.
+	 */
+	public void decrypt(Path cryptPath, BackupKey key, Path outputPath) throws WhatsappBackupReaderException {
+		decrypt(cryptPath, key, outputPath, null);
+	}
+
+	/**
+	 * @param listener is told how much of the database has been written, may be null
+	 */
+	public void decrypt(Path cryptPath, BackupKey key, Path outputPath, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		decrypt(BackupSource.of(cryptPath), key, outputPath, listener);
+	}
+
+	/**
+	 * Reads the crypt file from a stream, channel or archive entry instead of a file.
+	 * @param listener is told how much of the database has been written, may be null
+	 */
+	public void decrypt(BackupSource source, BackupKey key, Path outputPath, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		logger.info("Writing to: " + outputPath);
+		decrypt(source, key, () -> new DatabaseWriter(outputPath, fsyncPolicy, listener));
+	}
+
+	/**
+	 * Writes the decrypted database to a channel, e.g. a pipe to another process. Checksum and authentication tag
+	 * are only known after the last chunk was written, so the receiver must discard the data if an exception is
+	 * thrown. The channel is not closed.
+	 * @param listener is told how much of the database has been written, may be null
+	 */
+	public void decrypt(Path cryptPath, BackupKey key, WritableByteChannel out, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		decrypt(BackupSource.of(cryptPath), key, out, listener);
+	}
+
+	public void decrypt(BackupSource source, BackupKey key, WritableByteChannel out, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		decrypt(source, key, () -> new DatabaseWriter(out, listener));
+	}
+
+	/**
+	 * Writes the decrypted database to a stream like {@link #decrypt(Path, BackupKey, WritableByteChannel,
+	 * ProgressListener)} and flushes it. The stream is not closed.
+	 */
+	public void decrypt(Path cryptPath, BackupKey key, OutputStream out, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		decrypt(BackupSource.of(cryptPath), key, out, listener);
+	}
+
+	public void decrypt(BackupSource source, BackupKey key, OutputStream out, ProgressListener listener)
+			throws WhatsappBackupReaderException {
+		decrypt(source, key, Channels.newChannel(out), listener);
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Could not write output", e);
+		}
+	}
+
+	/**
+	 * Opens the output of a decryption.
+	 */
+	interface Output {
+		DatabaseWriter open() throws IOException;
+	}
+
+	void decrypt(BackupSource source, BackupKey key, Output output) throws WhatsappBackupReaderException {
+		Resources r = acquire();
+
+		try(TrailerInputStream trailerStream = new TrailerInputStream(source.open(),
+					LENGTH_TRAILER, r.window(chunkSize));
+				DatabaseWriter s = output.open()) {
+			s.setCryptSize(source.size());
+			MessageDigest md5 = r.md5();
+			DigestInputStream in = new DigestInputStream(trailerStream, md5);
+
+			BackupHeader header = BackupHeader.read(in);
+			GcmDecryptor gcm = r.gcm(key, header.getIv());
+			Inflater zlib = r.inflater();
+
+			byte[] chunk = r.chunk(chunkSize);
+			byte[] buf = r.buffer();
+			DataFormatException inflateError = null;
+			int n;
+			while((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+				gcm.update(chunk, 0, n, chunk, 0);
+
+				// corrupted data usually fails to inflate before the end is reached, keep reading to report
+				// the checksum or tag mismatch as the in-memory mode does
+				if(inflateError != null) {
+					continue;
+				}
+
+				zlib.setInput(chunk, 0, n);
+				try {
+					while(!zlib.needsInput() && !zlib.finished()) {
+						int l = zlib.inflate(buf, 0, buf.length);
+						if(l > 0) s.write(buf, 0, l);
+					}
+				} catch (DataFormatException e) {
+					inflateError = e;
+				}
+			}
+
+			verifyTrailer(trailerStream.getTrailer(), md5, gcm);
+
+			if(inflateError != null) {
+				throw new WhatsappBackupReaderException("Could not decompress", inflateError);
+			}
+
+			s.commit();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Could not decompress", e);
+		} finally {
+			release(r);
+		}
+	}
+
+	/**
+	 * Checks md5 checksum and authentication tag without decompressing or writing anything. As the tag is computed
+	 * over the encrypted data, nothing needs to be decrypted either.
+	 * @return the result of both checks, mismatches are not reported as exception
+	 * @throws WhatsappBackupReaderException if the file cannot be read or has no valid header
+	 */
+	public VerificationResult verify(Path cryptPath, BackupKey key) throws WhatsappBackupReaderException {
+		return verify(BackupSource.of(cryptPath), key);
+	}
+
+	public VerificationResult verify(BackupSource source, BackupKey key) throws WhatsappBackupReaderException {
+		Resources r = acquire();
+
+		try(TrailerInputStream trailerStream = new TrailerInputStream(source.open(),
+					LENGTH_TRAILER, r.window(chunkSize))) {
+			MessageDigest md5 = r.md5();
+			DigestInputStream in = new DigestInputStream(trailerStream, md5);
+
+			BackupHeader header = BackupHeader.read(in);
+			GcmDecryptor gcm = r.gcm(key, header.getIv());
+
+			byte[] chunk = r.chunk(chunkSize);
+			long encryptedSize = 0;
+			int n;
+			while((n = in.readNBytes(chunk, 0, chunk.length)) > 0) {
+				gcm.authenticate(chunk, 0, n);
+				encryptedSize += n;
+			}
+
+			byte[] trailer;
+			try {
+				trailer = trailerStream.getTrailer();
+			} catch (IOException e) {
+				throw new WhatsappBackupReaderException("File too short", e);
+			}
+			md5.update(trailer, 0, LENGTH_AUTHENTICATION_TAG);
+			byte[] checksumExpected = Arrays.copyOfRange(trailer, LENGTH_AUTHENTICATION_TAG, trailer.length);
+			boolean checksumValid = Arrays.equals(checksumExpected, md5.digest());
+			boolean tagValid = gcm.verify(Arrays.copyOf(trailer, LENGTH_AUTHENTICATION_TAG));
+
+			long fileSize = header.getLength() + encryptedSize + trailer.length;
+			return new VerificationResult(checksumValid, tagValid, header.getPrefix().getInfo().getAppVersion(),
+					fileSize, encryptedSize);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read encrypted file", e);
+		} finally {
+			release(r);
+		}
+	}
+
+	/**
+	 * @return pooled instances, or new ones if the pool is empty
+	 */
+	private static Resources acquire() {
+		Resources r = pool.poll();
+		return r == null ? new Resources() : r;
+	}
+
+	private static void release(Resources r) {
+		if(!pool.offer(r) && r.zlib != null) {
+			r.zlib.end();
+		}
+	}
+
+	/**
+	 * Checks the md5 checksum and the authentication tag held back at the end of the file.
+	 * @param md5 digest of everything before the trailer
+	 */
+	static void verifyTrailer(byte[] trailer, MessageDigest md5, GcmDecryptor gcm) throws WhatsappBackupReaderException {
+		md5.update(trailer, 0, LENGTH_AUTHENTICATION_TAG);
+		byte[] checksumExpected = Arrays.copyOfRange(trailer, LENGTH_AUTHENTICATION_TAG, trailer.length);
+		if(!Arrays.equals(checksumExpected, md5.digest())) {
+			throw new WhatsappBackupReaderException("Checksums not equal");
+		}
+
+		if(!gcm.verify(Arrays.copyOf(trailer, LENGTH_AUTHENTICATION_TAG))) {
+			throw new WhatsappBackupReaderException("Could not decrypt", new AEADBadTagException("Tag mismatch"));
+		}
+	}
+
+	static MessageDigest newMd5() throws WhatsappBackupReaderException {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new WhatsappBackupReaderException("Cannot initiate md5 sum generator", e);
+		}
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+}
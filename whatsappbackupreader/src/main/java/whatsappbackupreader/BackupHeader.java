@@ -0,0 +1,250 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.google.protobuf.Descriptors.FieldDescriptor;
+import com.google.protobuf.InvalidProtocolBufferException;
+
+import whatsappbackupreader.protos.BackupExpiryOuterClass.BackupExpiry;
+import whatsappbackupreader.protos.BackupPrefixOuterClass.BackupPrefix;
+
+/**
+ * The header at the start of a crypt file: a length byte, the feature table flag and the
+ * {@link BackupPrefix} protobuf.
+ */
+public class BackupHeader {
+
+	public enum CipherType {
+		C14,
+		C15
+	}
+
+	private static Logger logger = LogManager.getLogger(BackupHeader.class);
+
+	private static final int MAX_LENGTH = 2 + 255;
+	private static final int FIRST_FEATURE_FIELD = 5;
+	private static final int LAST_FEATURE_FIELD = 39;
+
+	private final BackupPrefix prefix;
+	private final int length;
+	private final boolean featureTable;
+	private final long fileSize;
+
+	private BackupHeader(BackupPrefix prefix, int length, boolean featureTable, long fileSize) {
+		this.prefix = prefix;
+		this.length = length;
+		this.featureTable = featureTable;
+		this.fileSize = fileSize;
+	}
+
+	/**
+	 * Reads only the header of the file, without the key and without looking at the rest of the file.
+	 * Runs silently, also for cipher types that cannot be decrypted yet.
+	 * @throws WhatsappBackupReaderException if the file cannot be read or the header is invalid
+	 */
+	public static BackupHeader probe(Path cryptPath) throws WhatsappBackupReaderException {
+		try(FileChannel channel = FileChannel.open(cryptPath, StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size, MAX_LENGTH));
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) == -1) {
+					break;
+				}
+			}
+			buf.flip();
+
+			return parse(buf, size);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read header of " + cryptPath, e);
+		}
+	}
+
+	/**
+	 * Parse proto files from header. Runs silently unless an error occurs, e.g. incorrect format or wrong version.
+	 * Exactly the header bytes are consumed from the stream.
+	 * @throws WhatsappBackupReaderException
+	 */
+	static BackupHeader read(InputStream in) throws WhatsappBackupReaderException {
+		try {
+			int protobufSize = in.read();
+			int msgstoreFeaturesFlag = in.read();
+			if(protobufSize == -1 || msgstoreFeaturesFlag == -1) {
+				throw new WhatsappBackupReaderException("File too short to contain a header");
+			}
+
+			byte[] protobufRaw = in.readNBytes(protobufSize);
+			if(protobufRaw.length != protobufSize) {
+				throw new WhatsappBackupReaderException("File too short to contain a header");
+			}
+
+			return checked(create(protobufSize, msgstoreFeaturesFlag, BackupPrefix.parseFrom(protobufRaw), -1));
+		} catch (InvalidProtocolBufferException e) {
+			throw new WhatsappBackupReaderException("Could not backup prefix protobuf", e);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read header", e);
+		}
+	}
+
+	/**
+	 * Same as {@link #read(InputStream)}, but parses the protobuf directly from the buffer without copying it.
+	 * The position of the buffer is advanced past the header.
+	 * @throws WhatsappBackupReaderException
+	 */
+	static BackupHeader read(ByteBuffer in) throws WhatsappBackupReaderException {
+		return checked(parse(in, -1));
+	}
+
+	private static BackupHeader parse(ByteBuffer in, long fileSize) throws WhatsappBackupReaderException {
+		if(in.remaining() < 2) {
+			throw new WhatsappBackupReaderException("File too short to contain a header");
+		}
+
+		int protobufSize = Byte.toUnsignedInt(in.get());
+		int msgstoreFeaturesFlag = Byte.toUnsignedInt(in.get());
+		if(in.remaining() < protobufSize) {
+			throw new WhatsappBackupReaderException("File too short to contain a header");
+		}
+
+		ByteBuffer protobufRaw = in.slice();
+		protobufRaw.limit(protobufSize);
+		in.position(in.position() + protobufSize);
+
+		try {
+			return create(protobufSize, msgstoreFeaturesFlag, BackupPrefix.parseFrom(protobufRaw), fileSize);
+		} catch (InvalidProtocolBufferException e) {
+			throw new WhatsappBackupReaderException("Could not backup prefix protobuf", e);
+		}
+	}
+
+	private static BackupHeader create(int protobufSize, int msgstoreFeaturesFlag, BackupPrefix header, long fileSize)
+			throws WhatsappBackupReaderException {
+		if(!header.hasC15Iv() && !header.hasC14Cipher()) {
+			throw new WhatsappBackupReaderException("Unknown encryption");
+		}
+
+		// A 0x01 as a second byte indicates the presence of the feature table in the protobuf.
+		// It is optional and present only in msgstore database, although
+		// Some old msgstore backups exist without it, so it is optional.
+		return new BackupHeader(header, 2 + protobufSize, msgstoreFeaturesFlag == 1, fileSize);
+	}
+
+	/**
+	 * Logs the header and makes sure it can be decrypted.
+	 */
+	private static BackupHeader checked(BackupHeader header) throws WhatsappBackupReaderException {
+		if(!header.hasFeatureTable()) {
+			logger.info("No feature table found (not a msgstore DB or very old)");
+		}
+
+		logger.info("Whatsapp version: " + header.getAppVersion());
+
+		if(header.getCipherType() == CipherType.C14) {
+			throw new WhatsappBackupReaderException("C14 not implemented");
+		}
+
+		int size = header.prefix.getC15Iv().getIV().size();
+		if(size != 16) {
+			throw new WhatsappBackupReaderException(
+					String.format("IV is not 16 bytes long but is %d bytes long", size)
+			);
+		}
+
+		return header;
+	}
+
+	public BackupPrefix getPrefix() {
+		return prefix;
+	}
+
+	/**
+	 * @return the metadata of the backup, e.g. app version and feature flags
+	 */
+	public BackupExpiry getInfo() {
+		return prefix.getInfo();
+	}
+
+	/**
+	 * @return Whatsapp version that created the backup, for example "2.22.4.14"
+	 */
+	public String getAppVersion() {
+		return prefix.getInfo().getAppVersion();
+	}
+
+	/**
+	 * @return backup_version of the feature table, -1 if not present
+	 */
+	public int getBackupVersion() {
+		return prefix.getInfo().hasBackupVersion() ? prefix.getInfo().getBackupVersion() : -1;
+	}
+
+	/**
+	 * @return true if the header announces a feature table, which only msgstore backups have
+	 */
+	public boolean hasFeatureTable() {
+		return featureTable;
+	}
+
+	/**
+	 * @param field number of the feature flag in {@link BackupExpiry}, f_5 to f_39
+	 * @return true if the flag is present and set
+	 */
+	public boolean isFeatureSet(int field) {
+		if(field < FIRST_FEATURE_FIELD || field > LAST_FEATURE_FIELD) {
+			return false;
+		}
+
+		BackupExpiry info = prefix.getInfo();
+		FieldDescriptor descriptor = info.getDescriptorForType().findFieldByNumber(field);
+		return descriptor != null && descriptor.getJavaType() == FieldDescriptor.JavaType.BOOLEAN
+				&& info.hasField(descriptor) && (Boolean) info.getField(descriptor);
+	}
+
+	/**
+	 * @return all feature flags as bit mask, bit n is set if f_n is set
+	 */
+	public long getFeatureFlags() {
+		long flags = 0;
+		for(int field = FIRST_FEATURE_FIELD; field <= LAST_FEATURE_FIELD; field++) {
+			if(isFeatureSet(field)) {
+				flags |= 1L << field;
+			}
+		}
+		return flags;
+	}
+
+	public CipherType getCipherType() {
+		return prefix.hasC15Iv() ? CipherType.C15 : CipherType.C14;
+	}
+
+	/**
+	 * @return size of the crypt file in bytes, -1 if the header was not read from a file
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @return number of bytes the header occupies at the start of the file
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	byte[] getIv() {
+		return prefix.getC15Iv().getIV().toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s, app version %s, backup version %d, features 0x%x, %d bytes", getCipherType(),
+				getAppVersion(), getBackupVersion(), getFeatureFlags(), fileSize);
+	}
+}
@@ -0,0 +1,127 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.InvalidKeyException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * The 64-digit encryption key of a crypt15 backup together with the AES key derived from it. Deriving the key
+ * once allows decrypting many files without repeating the key derivation.
+ */
+public class BackupKey {
+
+	private static final String ALGORITHM = "HmacSHA256";
+	private static final String MESSAGE_STRING = "backup encryption";
+	private static final String HEX_VALUES = "0123456789ABCDEF";
+
+	private final byte[] aesKey;
+
+	private BackupKey(byte[] aesKey) {
+		this.aesKey = aesKey;
+	}
+
+	/**
+	 * @param keyFileData content of a key file, the key as hex string
+	 */
+	public static BackupKey of(byte[] keyFileData) throws WhatsappBackupReaderException {
+		return of(new String(keyFileData));
+	}
+
+	/**
+	 * @param hex the key as hex string, spaces and line breaks are ignored
+	 */
+	public static BackupKey of(String hex) throws WhatsappBackupReaderException {
+		byte[] keyFileArr = hexStringToByteArray(hex);
+
+		try {
+			return new BackupKey(calculateKey(keyFileArr));
+		} catch (InvalidKeyException | NoSuchAlgorithmException e) {
+			throw new WhatsappBackupReaderException("Cannot initialize keys", e);
+		}
+	}
+
+	public static BackupKey fromKeyFile(Path keyPath) throws WhatsappBackupReaderException {
+		try {
+			return of(Files.readAllBytes(keyPath));
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot open key file", e);
+		}
+	}
+
+	byte[] getAesKey() {
+		return aesKey;
+	}
+
+	/**
+	 * @return a short hex string that identifies the key without revealing it, e.g. to name cache entries
+	 */
+	public String getFingerprint() {
+		try {
+			byte[] hash = MessageDigest.getInstance("SHA-256").digest(aesKey);
+			return CryptFiles.toHex(Arrays.copyOf(hash, 8));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("SHA-256 not available", e);
+		}
+	}
+
+	// see https://raw.githubusercontent.com/ElDavoo/wa-crypt-tools/main/src/wa_crypt_tools/lib/key/key15.py for more information
+	private static byte[] calculateKey(byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
+		byte[] privateseed = new byte[32];
+
+		byte[] message = MESSAGE_STRING.getBytes();
+
+		SecretKeySpec secretKeySpec = new SecretKeySpec(privateseed, ALGORITHM);
+		Mac mac = Mac.getInstance(ALGORITHM);
+		mac.init(secretKeySpec);
+		mac.update(key);
+
+		byte[] privatekey = mac.doFinal();
+
+		SecretKeySpec hasherSpec = new SecretKeySpec(privatekey, ALGORITHM);
+		Mac hasher = Mac.getInstance(ALGORITHM);
+		hasher.init(hasherSpec);
+		hasher.update(message);
+
+		byte b = (byte)1;
+		hasher.update(b);
+		byte[] buf = hasher.doFinal();
+
+		return buf;
+	}
+
+	private static byte hexCharToByte(char c) throws WhatsappBackupReaderException {
+		c = Character.toUpperCase(c);
+		int i = HEX_VALUES.indexOf(c);
+		if(i==-1) {
+			throw new WhatsappBackupReaderException("Bad hex character");
+		}
+
+		return (byte)i;
+	}
+
+	private static byte[] hexStringToByteArray(String str) throws WhatsappBackupReaderException {
+		str = str.replace(" ", "").replace("\n", "");
+
+		if(str.length() % 2 != 0) {
+			throw new WhatsappBackupReaderException("Key string length must be divisble by two");
+		}
+
+		byte buf[] = new byte[str.length() / 2];
+
+		for(int i=0; i<buf.length; i++) {
+			char c1 = str.charAt(2*i);
+			char c2 = str.charAt(2*i+1);
+
+			buf[i] = (byte) (hexCharToByte(c1)*16 + hexCharToByte(c2));
+		}
+
+		return buf;
+	}
+}
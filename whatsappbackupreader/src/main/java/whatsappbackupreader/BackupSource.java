@@ -0,0 +1,295 @@
+package whatsappbackupreader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Enumeration;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Where a crypt file is read from: a file, a stream or channel of known or unknown length, or an entry of a zip or
+ * tar archive, which is decrypted without extracting it first. Checksum and authentication tag are verified the same
+ * way for every source. Files and archives on disk can be read any number of times, streams and channels only once.
+ * <p>
+ * Only a source of known size up to 2 GiB can be decrypted in memory, and only a file can be mapped. In other
+ * cases {@link WhatsappBackupReader} decrypts in {@link DecryptionMode#STREAMING}.
+ */
+public abstract class BackupSource {
+
+	private final String name;
+	private final long size;
+
+	BackupSource(String name, long size) {
+		this.name = name;
+		this.size = size;
+	}
+
+	/**
+	 * Opens the crypt file. The stream ends after its last byte; closing it does not close a stream or channel of
+	 * the caller.
+	 */
+	public abstract InputStream open() throws IOException;
+
+	/**
+	 * @return number of bytes of the crypt file, -1 if unknown
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * @return file or entry name, used in log and error messages
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * @return the file, null if the source is no file on disk
+	 */
+	Path getPath() {
+		return null;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+	public static BackupSource of(Path cryptPath) {
+		return new BackupSource(cryptPath.toString(), -1) {
+			@Override
+			public InputStream open() throws IOException {
+				return Files.newInputStream(cryptPath);
+			}
+
+			@Override
+			public long size() {
+				try {
+					return Files.size(cryptPath);
+				} catch (IOException e) {
+					return -1;
+				}
+			}
+
+			@Override
+			Path getPath() {
+				return cryptPath;
+			}
+		};
+	}
+
+	/**
+	 * Reads the stream until it ends.
+	 */
+	public static BackupSource of(InputStream in) {
+		return of(in, -1);
+	}
+
+	/**
+	 * Reads exactly size bytes of the stream, the rest is left for the caller.
+	 * @param size number of bytes of the crypt file, -1 if unknown
+	 */
+	public static BackupSource of(InputStream in, long size) {
+		return new StreamSource("stream", size, () -> nonClosing(in));
+	}
+
+	/**
+	 * Reads the channel until it ends.
+	 */
+	public static BackupSource of(ReadableByteChannel channel) {
+		return of(channel, -1);
+	}
+
+	/**
+	 * Reads exactly size bytes of the channel, the rest is left for the caller.
+	 * @param size number of bytes of the crypt file, -1 if unknown
+	 */
+	public static BackupSource of(ReadableByteChannel channel, long size) {
+		return new StreamSource("channel", size, () -> nonClosing(Channels.newInputStream(channel)));
+	}
+
+	/**
+	 * Reads an entry of a zip archive on disk. Its size is known from the central directory.
+	 * @param entryName name of the entry, null for the first crypt file of the archive
+	 */
+	public static BackupSource zipEntry(Path zipPath, String entryName) throws WhatsappBackupReaderException {
+		try(ZipFile zip = new ZipFile(zipPath.toFile())) {
+			Enumeration<? extends ZipEntry> entries = zip.entries();
+			while(entries.hasMoreElements()) {
+				ZipEntry entry = entries.nextElement();
+				if(!entry.isDirectory() && matches(entry.getName(), entryName)) {
+					return zipEntry(zipPath, entry.getName(), entry.getSize());
+				}
+			}
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read zip archive " + zipPath, e);
+		}
+		throw new WhatsappBackupReaderException(notFound(zipPath.toString(), entryName));
+	}
+
+	private static BackupSource zipEntry(Path zipPath, String entryName, long size) {
+		return new BackupSource(zipPath + "!" + entryName, size) {
+			@Override
+			public InputStream open() throws IOException {
+				ZipFile zip = new ZipFile(zipPath.toFile());
+				try {
+					ZipEntry entry = zip.getEntry(entryName);
+					if(entry == null) {
+						throw new IOException(notFound(zipPath.toString(), entryName));
+					}
+					return new FilterInputStream(zip.getInputStream(entry)) {
+						@Override
+						public void close() throws IOException {
+							zip.close();
+						}
+					};
+				} catch (IOException e) {
+					zip.close();
+					throw e;
+				}
+			}
+		};
+	}
+
+	/**
+	 * Reads an entry of a zip stream, e.g. an upload. The local headers before the entry are skipped; its size is
+	 * only known once it is reached, so it is not decrypted in memory.
+	 * @param entryName name of the entry, null for the first crypt file of the archive
+	 */
+	public static BackupSource zipEntry(InputStream zip, String entryName) {
+		return new StreamSource(entryName == null ? "zip stream" : entryName, -1, () -> {
+			ZipInputStream in = new ZipInputStream(nonClosing(zip));
+			ZipEntry entry;
+			while((entry = in.getNextEntry()) != null) {
+				if(!entry.isDirectory() && matches(entry.getName(), entryName)) {
+					return in;
+				}
+			}
+			in.close();
+			throw new IOException(notFound("zip stream", entryName));
+		});
+	}
+
+	/**
+	 * Reads an entry of a tar archive on disk, which may be compressed with gzip. The archive is scanned once for
+	 * the entry; an uncompressed archive is then read from the offset of the entry on.
+	 * @param entryName name of the entry, null for the first crypt file of the archive
+	 */
+	public static BackupSource tarEntry(Path tarPath, String entryName) throws WhatsappBackupReaderException {
+		try(InputStream in = Files.newInputStream(tarPath)) {
+			TarReader tar = new TarReader(TarReader.decompress(in));
+			while(tar.next()) {
+				if(matches(tar.getName(), entryName)) {
+					return tarEntry(tarPath, tar.getName(), tar.getOffset(), tar.getSize());
+				}
+			}
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read tar archive " + tarPath, e);
+		}
+		throw new WhatsappBackupReaderException(notFound(tarPath.toString(), entryName));
+	}
+
+	private static BackupSource tarEntry(Path tarPath, String entryName, long offset, long size) {
+		return new BackupSource(tarPath + "!" + entryName, size) {
+			@Override
+			public InputStream open() throws IOException {
+				InputStream in = TarReader.decompress(Files.newInputStream(tarPath));
+				try {
+					BoundedInputStream.skipFully(in, offset);
+				} catch (IOException e) {
+					in.close();
+					throw e;
+				}
+				return new BoundedInputStream(in, size, true);
+			}
+		};
+	}
+
+	/**
+	 * Reads an entry of a tar stream, which may be compressed with gzip. The entries before it are skipped.
+	 * @param entryName name of the entry, null for the first crypt file of the archive
+	 */
+	public static BackupSource tarEntry(InputStream tar, String entryName) {
+		return new StreamSource(entryName == null ? "tar stream" : entryName, -1, () -> {
+			InputStream archive = TarReader.decompress(nonClosing(tar));
+			TarReader reader = new TarReader(archive);
+			while(reader.next()) {
+				if(matches(reader.getName(), entryName)) {
+					return new FilterInputStream(reader.entryStream()) {
+						@Override
+						public void close() throws IOException {
+							archive.close();
+						}
+					};
+				}
+			}
+			archive.close();
+			throw new IOException(notFound("tar stream", entryName));
+		});
+	}
+
+	/**
+	 * Compares entry names without a leading "./" or "/", as archivers add them depending on how they were called.
+	 */
+	static boolean matches(String name, String entryName) {
+		if(entryName == null) {
+			return CryptFiles.isCryptFile(name);
+		}
+		return normalize(name).equals(normalize(entryName));
+	}
+
+	private static String normalize(String name) {
+		while(name.startsWith("./") || name.startsWith("/")) {
+			name = name.substring(name.charAt(0) == '.' ? 2 : 1);
+		}
+		return name;
+	}
+
+	private static String notFound(String archive, String entryName) {
+		return entryName == null ? "No crypt file in " + archive : "No entry " + entryName + " in " + archive;
+	}
+
+	/**
+	 * @return the stream, which is not closed with the returned one, e.g. to end an inflater reading from it
+	 */
+	private static InputStream nonClosing(InputStream in) {
+		return new BoundedInputStream(in, -1, false);
+	}
+
+	/**
+	 * Opens the stream of a {@link StreamSource}, closing it must not close the stream of the caller.
+	 */
+	private interface Opener {
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * A stream of the caller, which can be read once.
+	 */
+	private static class StreamSource extends BackupSource {
+		private Opener opener;
+
+		StreamSource(String name, long size, Opener opener) {
+			super(name, size);
+			this.opener = opener;
+		}
+
+		@Override
+		public synchronized InputStream open() throws IOException {
+			if(opener == null) {
+				throw new IOException(getName() + " can only be read once");
+			}
+			Opener o = opener;
+			opener = null;
+
+			return new BoundedInputStream(o.open(), size(), true);
+		}
+	}
+}
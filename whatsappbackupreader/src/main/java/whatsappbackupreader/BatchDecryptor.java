@@ -0,0 +1,196 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decrypts many crypt files with the same key on a fixed number of threads, within a memory budget. The key is
+ * derived only once. A file that fails does not stop the others, its error is part of the {@link BatchReport}.
+ */
+public class BatchDecryptor {
+
+	private static Logger logger = LogManager.getLogger(BatchDecryptor.class);
+
+	private final BackupKey key;
+	private final Path outputDirectory;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private long memoryBudget = Runtime.getRuntime().maxMemory() / 4 * 3;
+	private DecryptionMode decryptionMode = DecryptionMode.STREAMING;
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.AT_END;
+	private boolean createExtraSqlViews;
+	private OutputCache outputCache;
+
+	/**
+	 * @param outputDirectory the databases are written here, named like the crypt files without the crypt extension
+	 */
+	public BatchDecryptor(BackupKey key, Path outputDirectory) {
+		this.key = key;
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Decrypts all crypt files below a directory or all files matching a glob pattern. The directory structure
+	 * below the directory or the part of the pattern without wildcards is kept in the output directory.
+	 * @param pattern a directory or a glob pattern, e.g. "/backups/msgstore-*.crypt15"
+	 */
+	public BatchReport run(String pattern) throws WhatsappBackupReaderException {
+		return run(CryptFiles.baseDirectory(pattern), CryptFiles.find(pattern));
+	}
+
+	/**
+	 * Decrypts the files in parallel.
+	 * @param baseDirectory the paths of the output files relative to the output directory are the paths of the
+	 * crypt files relative to this directory
+	 */
+	public BatchReport run(Path baseDirectory, List<Path> files) throws WhatsappBackupReaderException {
+		logger.info("Decrypting {} files on {} threads", files.size(), threads);
+
+		long start = System.nanoTime();
+		List<Future<BatchResult>> futures = new ArrayList<Future<BatchResult>>();
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(memoryBudget, threads)) {
+			// the largest files start first, once all are known
+			scheduler.hold();
+			for(Path file : files) {
+				Path output = outputDirectory.resolve(baseDirectory.relativize(file));
+				Path outputFile = output.resolveSibling(CryptFiles.stripCryptExtension(output.getFileName().toString()));
+				futures.add(scheduler.submit(() -> decrypt(file, outputFile), estimateMemory(file, outputFile),
+						size(file)));
+			}
+			scheduler.release();
+		}
+
+		try {
+			List<BatchResult> results = new ArrayList<BatchResult>();
+			for(Future<BatchResult> future : futures) {
+				results.add(future.get());
+			}
+
+			BatchReport report = new BatchReport(results, System.nanoTime() - start);
+			logger.info(report);
+			return report;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while decrypting files", e);
+		} catch (ExecutionException e) {
+			throw new WhatsappBackupReaderException("Cannot decrypt files", e.getCause());
+		}
+	}
+
+	private long estimateMemory(Path file, Path output) {
+		try(WhatsappBackupReader reader = new WhatsappBackupReader(file, key, output)) {
+			reader.setDecryptionMode(decryptionMode);
+			return reader.estimateMemory();
+		} catch (WhatsappBackupReaderException e) {
+			// fails again when decrypting and is reported there
+			return 0;
+		}
+	}
+
+	private static long size(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Decrypts a single file.
+	 */
+	public BatchResult decrypt(Path file, Path output) {
+		long start = System.nanoTime();
+		long size = 0;
+		try {
+			size = Files.size(file);
+			if(output.getParent() != null) {
+				Files.createDirectories(output.getParent());
+			}
+
+			try(DatabaseDumper dumper = DatabaseDumper.of(file, key, output)) {
+				dumper.setDecryptionMode(decryptionMode);
+				dumper.setFsyncPolicy(fsyncPolicy);
+				dumper.setCreateExtraSqlViews(createExtraSqlViews);
+				dumper.setOutputCache(outputCache);
+				dumper.run();
+			}
+
+			return new BatchResult(file, output, BatchResult.Status.OK, size, Files.size(output),
+					System.nanoTime() - start, null);
+		} catch (WhatsappBackupReaderException | SQLException | IOException e) {
+			logger.warn("Cannot decrypt " + file + ": " + e.getMessage());
+			return new BatchResult(file, output, BatchResult.Status.FAILED, size, 0, System.nanoTime() - start,
+					e.getMessage());
+		}
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	/**
+	 * @param memoryBudget number of bytes the concurrent decryptions may use together, see
+	 * {@link DecryptionScheduler}
+	 */
+	public void setMemoryBudget(long memoryBudget) {
+		if(memoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive");
+		}
+		this.memoryBudget = memoryBudget;
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return decryptionMode;
+	}
+
+	/**
+	 * @param decryptionMode defaults to {@link DecryptionMode#STREAMING}, as files are decrypted concurrently
+	 */
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		this.decryptionMode = decryptionMode;
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+	}
+
+	public boolean isCreateExtraSqlViews() {
+		return createExtraSqlViews;
+	}
+
+	public void setCreateExtraSqlViews(boolean createExtraSqlViews) {
+		this.createExtraSqlViews = createExtraSqlViews;
+	}
+
+	public OutputCache getOutputCache() {
+		return outputCache;
+	}
+
+	public void setOutputCache(OutputCache outputCache) {
+		this.outputCache = outputCache;
+	}
+}
@@ -0,0 +1,80 @@
+package whatsappbackupreader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Results of a {@link BatchDecryptor} run and its throughput.
+ */
+public class BatchReport {
+
+	private final List<BatchResult> results;
+	private final long elapsedNanos;
+
+	BatchReport(List<BatchResult> results, long elapsedNanos) {
+		this.results = Collections.unmodifiableList(results);
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	/**
+	 * @return one result per file, in the order of the files
+	 */
+	public List<BatchResult> getResults() {
+		return results;
+	}
+
+	public int getFailed() {
+		return (int) results.stream().filter(r -> !r.isOk()).count();
+	}
+
+	/**
+	 * @return wall clock time of the whole run
+	 */
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return number of bytes of all crypt files that were decrypted successfully
+	 */
+	public long getBytesRead() {
+		return results.stream().filter(BatchResult::isOk).mapToLong(BatchResult::getSize).sum();
+	}
+
+	public long getBytesWritten() {
+		return results.stream().mapToLong(BatchResult::getOutputSize).sum();
+	}
+
+	/**
+	 * @return decrypted crypt file bytes per second
+	 */
+	public double getThroughput() {
+		return elapsedNanos == 0 ? 0 : getBytesRead() * 1e9 / elapsedNanos;
+	}
+
+	/**
+	 * Writes all results to a tab separated report: path, status, size, output size, milliseconds and details.
+	 */
+	public void writeReport(Path reportPath) throws IOException {
+		try(BufferedWriter writer = Files.newBufferedWriter(reportPath)) {
+			for(BatchResult result : results) {
+				writer.write(result.getPath() + "\t" + result.getStatus() + "\t" + result.getSize() + "\t"
+						+ result.getOutputSize() + "\t" + TimeUnit.NANOSECONDS.toMillis(result.getElapsedNanos()) + "\t"
+						+ (result.getMessage() == null ? "" : result.getMessage()));
+				writer.newLine();
+			}
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d files, %d failed, read %d bytes, written %d bytes in %d ms, %.1f MiB/s",
+				results.size(), getFailed(), getBytesRead(), getBytesWritten(),
+				TimeUnit.NANOSECONDS.toMillis(elapsedNanos), getThroughput() / (1024 * 1024));
+	}
+}
@@ -0,0 +1,80 @@
+package whatsappbackupreader;
+
+import java.nio.file.Path;
+
+/**
+ * Outcome of decrypting one file with {@link BatchDecryptor}.
+ */
+public class BatchResult {
+
+	public enum Status {
+		/** The file was decrypted and authenticated. */
+		OK,
+		/** The file could not be decrypted. */
+		FAILED
+	}
+
+	private final Path path;
+	private final Path output;
+	private final Status status;
+	private final long size;
+	private final long outputSize;
+	private final long elapsedNanos;
+	private final String message;
+
+	BatchResult(Path path, Path output, Status status, long size, long outputSize, long elapsedNanos, String message) {
+		this.path = path;
+		this.output = output;
+		this.status = status;
+		this.size = size;
+		this.outputSize = outputSize;
+		this.elapsedNanos = elapsedNanos;
+		this.message = message;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Path getOutput() {
+		return output;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isOk() {
+		return status == Status.OK;
+	}
+
+	/**
+	 * @return size of the crypt file in bytes
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return size of the decrypted database in bytes, 0 if decryption failed
+	 */
+	public long getOutputSize() {
+		return outputSize;
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	/**
+	 * @return details on the failure, null if the file is ok
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return message == null ? path + ": " + status : path + ": " + status + " (" + message + ")";
+	}
+}
@@ -0,0 +1,104 @@
+package whatsappbackupreader;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that ends after a given number of bytes of the underlying stream, e.g. an entry of a tar archive.
+ * If the underlying stream ends earlier, an {@link EOFException} is thrown instead of a short read, so a
+ * truncated archive is not mistaken for a short file.
+ */
+class BoundedInputStream extends FilterInputStream {
+
+	private long remaining;
+	private final boolean closeUnderlying;
+
+	/**
+	 * @param size number of bytes to read, -1 to read until the underlying stream ends
+	 * @param closeUnderlying whether {@link #close()} closes the underlying stream
+	 */
+	BoundedInputStream(InputStream in, long size, boolean closeUnderlying) {
+		super(in);
+		this.remaining = size;
+		this.closeUnderlying = closeUnderlying;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : Byte.toUnsignedInt(b[0]);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+		if(remaining == 0) {
+			return -1;
+		}
+
+		int n = in.read(b, off, remaining < 0 ? len : (int) Math.min(len, remaining));
+		if(n == -1) {
+			if(remaining > 0) {
+				throw new EOFException(String.format("Stream ended %d bytes too early", remaining));
+			}
+			return -1;
+		}
+		if(remaining > 0) {
+			remaining -= n;
+		}
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = in.skip(remaining < 0 ? n : Math.min(n, remaining));
+		if(remaining > 0) {
+			remaining -= skipped;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		int available = in.available();
+		return remaining < 0 ? available : (int) Math.min(available, remaining);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if(closeUnderlying) {
+			in.close();
+		}
+	}
+
+	/**
+	 * Skips exactly n bytes, reading them if the stream cannot skip.
+	 */
+	static void skipFully(InputStream in, long n) throws IOException {
+		byte[] buffer = null;
+		while(n > 0) {
+			long skipped = in.skip(n);
+			if(skipped <= 0) {
+				if(buffer == null) {
+					buffer = new byte[8192];
+				}
+				int read = in.read(buffer, 0, (int) Math.min(n, buffer.length));
+				if(read == -1) {
+					throw new EOFException(String.format("Stream ended %d bytes too early", n));
+				}
+				skipped = read;
+			}
+			n -= skipped;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package whatsappbackupreader;
+
+import java.nio.file.Path;
+
+/**
+ * A crypt file recorded in a {@link BackupCatalog}.
+ */
+public class CatalogEntry {
+
+	private final Path path;
+	private final long size;
+	private final long modified;
+	private final String cipherType;
+	private final String appVersion;
+	private final int backupVersion;
+	private final boolean featureTable;
+	private final long featureFlags;
+	private final String checksum;
+	private final String error;
+
+	CatalogEntry(Path path, long size, long modified, String cipherType, String appVersion, int backupVersion,
+			boolean featureTable, long featureFlags, String checksum, String error) {
+		this.path = path;
+		this.size = size;
+		this.modified = modified;
+		this.cipherType = cipherType;
+		this.appVersion = appVersion;
+		this.backupVersion = backupVersion;
+		this.featureTable = featureTable;
+		this.featureFlags = featureFlags;
+		this.checksum = checksum;
+		this.error = error;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return last modification time in milliseconds since the epoch
+	 */
+	public long getModified() {
+		return modified;
+	}
+
+	/**
+	 * @return C14 or C15, null if the header could not be read
+	 */
+	public String getCipherType() {
+		return cipherType;
+	}
+
+	public String getAppVersion() {
+		return appVersion;
+	}
+
+	/**
+	 * @return backup_version of the feature table, -1 if not present
+	 */
+	public int getBackupVersion() {
+		return backupVersion;
+	}
+
+	public boolean hasFeatureTable() {
+		return featureTable;
+	}
+
+	/**
+	 * @return feature flags as bit mask, see {@link BackupHeader#getFeatureFlags()}
+	 */
+	public long getFeatureFlags() {
+		return featureFlags;
+	}
+
+	/**
+	 * @return the md5 checksum stored at the end of the file as hex string
+	 */
+	public String getChecksum() {
+		return checksum;
+	}
+
+	/**
+	 * @return why the header could not be read, null if it could
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return error == null
+				? String.format("%s: %s, app version %s, %d bytes, md5 %s", path, cipherType, appVersion, size, checksum)
+				: String.format("%s: %s", path, error);
+	}
+}
@@ -0,0 +1,24 @@
+package whatsappbackupreader;
+
+/**
+ * Selects when the md5 checksum at the end of the file is checked in {@link DecryptionMode#IN_MEMORY} and
+ * {@link DecryptionMode#PARALLEL}. {@link DecryptionMode#STREAMING} always hashes while reading and checks at the end.
+ */
+public enum ChecksumVerification {
+	/**
+	 * Hashes the whole file before decryption starts.
+	 */
+	BEFORE_DECRYPTION,
+
+	/**
+	 * Hashes on a separate thread while decrypting and inflating. As soon as the checksums are known to differ,
+	 * decryption is aborted and no output is written.
+	 */
+	FAIL_FAST,
+
+	/**
+	 * Hashes on a separate thread while decrypting and inflating, and reports differing checksums only after
+	 * the output has been written completely. The output is kept, as its authentication tag has been checked.
+	 */
+	FAIL_AT_END
+}
@@ -0,0 +1,134 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Finds crypt files (*.crypt12, *.crypt14, *.crypt15, ...) in directory trees.
+ */
+class CryptFiles {
+
+	private static final int LENGTH_CHECKSUM = 16;
+	private static final Pattern CRYPT_FILE = Pattern.compile(".*\\.crypt\\d+$");
+	private static final Pattern CRYPT_EXTENSION = Pattern.compile("\\.crypt\\d+$");
+	private static final String GLOB_CHARACTERS = "*?[{";
+
+	private CryptFiles() {
+	}
+
+	static boolean isCryptFile(Path path) {
+		return isCryptFile(path.getFileName().toString());
+	}
+
+	/**
+	 * @param name file name or path, e.g. of an archive entry
+	 */
+	static boolean isCryptFile(String name) {
+		return CRYPT_FILE.matcher(name).matches();
+	}
+
+	/**
+	 * @return all crypt files below the directory, sorted by path
+	 */
+	static List<Path> list(Path directory) throws WhatsappBackupReaderException {
+		try(Stream<Path> stream = Files.walk(directory)) {
+			return stream
+					.filter(Files::isRegularFile)
+					.filter(CryptFiles::isCryptFile)
+					.sorted()
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot list directory " + directory, e);
+		}
+	}
+
+	/**
+	 * @param pattern a directory or a glob pattern, e.g. "/backups/msgstore-*.crypt15"
+	 * @return all crypt files below the directory or all regular files matching the pattern, sorted by path
+	 */
+	static List<Path> find(String pattern) throws WhatsappBackupReaderException {
+		Path base = baseDirectory(pattern);
+		if(base.equals(Paths.get(pattern))) {
+			return list(base);
+		}
+
+		PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+		try(Stream<Path> stream = Files.walk(base)) {
+			return stream
+					.filter(Files::isRegularFile)
+					.filter(matcher::matches)
+					.sorted()
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot list directory " + base, e);
+		}
+	}
+
+	/**
+	 * @return the directory part of the pattern before the first glob character, the pattern itself if it has none
+	 */
+	static Path baseDirectory(String pattern) {
+		int wildcard = -1;
+		for(int i = 0; i < pattern.length() && wildcard == -1; i++) {
+			if(GLOB_CHARACTERS.indexOf(pattern.charAt(i)) != -1) {
+				wildcard = i;
+			}
+		}
+		if(wildcard == -1) {
+			return Paths.get(pattern);
+		}
+
+		int separator = pattern.lastIndexOf('/', wildcard);
+		if(separator == -1) {
+			return Paths.get("");
+		}
+		return Paths.get(separator == 0 ? "/" : pattern.substring(0, separator));
+	}
+
+	/**
+	 * @return the file name without the crypt extension, e.g. "msgstore.db" for "msgstore.db.crypt15"
+	 */
+	static String stripCryptExtension(String name) {
+		return CRYPT_EXTENSION.matcher(name).replaceFirst("");
+	}
+
+	/**
+	 * Reads the md5 checksum at the end of a crypt file without reading the rest of it.
+	 * @return the checksum as hex string, null if the file is too short
+	 */
+	static String readChecksum(Path file, long size) throws IOException {
+		if(size < LENGTH_CHECKSUM) {
+			return null;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(LENGTH_CHECKSUM);
+		try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(buf.hasRemaining()) {
+				if(channel.read(buf, size - LENGTH_CHECKSUM + buf.position()) == -1) {
+					return null;
+				}
+			}
+		}
+
+		return toHex(buf.array());
+	}
+
+	static String toHex(byte[] data) {
+		StringBuilder sb = new StringBuilder();
+		for(byte b : data) {
+			sb.append(String.format("%02x", b));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,214 @@
+package whatsappbackupreader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Stays resident and runs commands sent by {@link DaemonClient}, so that repeated runs do not pay for starting
+ * the JVM, loading the protobuf classes and extracting the SQLite library. Each connection sends one command line
+ * with tab separated fields and gets one line back, starting with OK or ERROR:
+ * <ul>
+ * <li>{@code decrypt <cryptpath> <keypath> <outputpath>} writes the database</li>
+ * <li>{@code export <cryptpath> <keypath> <outputpath> [<contactspath>]} writes the database with extra views</li>
+ * <li>{@code verify <cryptpath> <keypath>} checks checksum and authentication tag</li>
+ * <li>{@code ping} and {@code stop}</li>
+ * </ul>
+ * Paths must be absolute, as the daemon has its own working directory.
+ */
+public class Daemon implements AutoCloseable {
+
+	private static Logger logger = LogManager.getLogger(Daemon.class);
+
+	static final String OK = "OK";
+	static final String ERROR = "ERROR";
+	static final String TOKEN = "token";
+
+	private final Path socketPath;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private DecryptionMode decryptionMode = DecryptionMode.IN_MEMORY;
+
+	private DaemonSockets.Server server;
+	private volatile boolean closed;
+
+	public Daemon(Path socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * Accepts connections until {@link #close()} is called or a stop command arrives.
+	 */
+	public void run() throws WhatsappBackupReaderException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "daemon-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		try {
+			server = DaemonSockets.listen(socketPath);
+			logger.info("Listening on {}", socketPath);
+
+			while(!closed) {
+				SocketChannel channel = server.channel.accept();
+				executor.execute(() -> handle(channel));
+			}
+		} catch (AsynchronousCloseException e) {
+			// closed
+		} catch (IOException e) {
+			if(!closed) {
+				throw new WhatsappBackupReaderException("Cannot listen on " + socketPath, e);
+			}
+		} finally {
+			close();
+			executor.shutdown();
+			try {
+				executor.awaitTermination(1, TimeUnit.HOURS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+		if(server != null) {
+			try {
+				server.channel.close();
+				Files.deleteIfExists(socketPath);
+			} catch (IOException e) {
+				logger.warn("Cannot close " + socketPath + ": " + e.getMessage());
+			}
+		}
+	}
+
+	private void handle(SocketChannel channel) {
+		try(SocketChannel c = channel) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(c),
+					StandardCharsets.UTF_8));
+			OutputStream out = Channels.newOutputStream(c);
+
+			String response;
+			if(server.token != null && !(TOKEN + "\t" + server.token).equals(in.readLine())) {
+				response = ERROR + " Invalid token";
+			} else {
+				String line = in.readLine();
+				response = line == null ? ERROR + " No command" : execute(line.split("\t"));
+			}
+
+			out.write((response + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+		} catch (IOException e) {
+			logger.warn("Cannot answer client: " + e.getMessage());
+		}
+	}
+
+	private String execute(String[] command) {
+		long start = System.nanoTime();
+		try {
+			String result = executeCommand(command);
+			return OK + " " + result + " (" + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms)";
+		} catch (WhatsappBackupReaderException | SQLException | IOException | RuntimeException e) {
+			logger.warn("{} failed: {}", command[0], e.getMessage());
+			return ERROR + " " + (e.getMessage() == null ? e.toString() : e.getMessage()).replace('\n', ' ');
+		}
+	}
+
+	private String executeCommand(String[] command) throws WhatsappBackupReaderException, SQLException, IOException {
+		switch(command[0]) {
+		case "ping":
+			return "pong";
+		case "stop":
+			close();
+			return "stopping";
+		case "decrypt": {
+			checkArguments(command, 4, 4);
+			try(WhatsappBackupReader reader = new WhatsappBackupReader(path(command[1]), path(command[2]),
+					path(command[3]))) {
+				reader.setDecryptionMode(decryptionMode);
+				reader.decrypt();
+			}
+			return "decrypted " + command[3];
+		}
+		case "export": {
+			checkArguments(command, 4, 5);
+			try(DatabaseDumper dumper = DatabaseDumper.of(path(command[1]), path(command[2]), path(command[3]))) {
+				dumper.setDecryptionMode(decryptionMode);
+				dumper.setCreateExtraSqlViews(true);
+				if(command.length > 4) {
+					dumper.readContacts(path(command[4]));
+				}
+				dumper.run();
+			}
+			return "exported " + command[3];
+		}
+		case "verify": {
+			checkArguments(command, 3, 3);
+			VerificationResult result;
+			try(WhatsappBackupReader reader = new WhatsappBackupReader(path(command[1]), path(command[2]), null)) {
+				result = reader.verify();
+			}
+			if(!result.isValid()) {
+				throw new WhatsappBackupReaderException(result.toString());
+			}
+			return result.toString();
+		}
+		default:
+			throw new WhatsappBackupReaderException("Unknown command " + command[0]);
+		}
+	}
+
+	private static void checkArguments(String[] command, int min, int max) throws WhatsappBackupReaderException {
+		if(command.length < min || command.length > max) {
+			throw new WhatsappBackupReaderException("Wrong number of arguments for " + command[0]);
+		}
+	}
+
+	private static Path path(String path) throws WhatsappBackupReaderException {
+		Path p = Paths.get(path);
+		if(!p.isAbsolute()) {
+			throw new WhatsappBackupReaderException("Path must be absolute: " + path);
+		}
+		return p;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * @param threads number of commands running at the same time
+	 */
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return decryptionMode;
+	}
+
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		this.decryptionMode = decryptionMode;
+	}
+}
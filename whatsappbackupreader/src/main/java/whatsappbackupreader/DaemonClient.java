@@ -0,0 +1,60 @@
+package whatsappbackupreader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+/**
+ * Sends commands to a running {@link Daemon}.
+ */
+public class DaemonClient {
+
+	private final Path socketPath;
+
+	public DaemonClient(Path socketPath) {
+		this.socketPath = socketPath;
+	}
+
+	/**
+	 * @param command the command and its arguments, paths must be absolute
+	 * @return the answer of the daemon without the leading OK
+	 * @throws WhatsappBackupReaderException if the daemon cannot be reached or the command failed
+	 */
+	public String send(String... command) throws WhatsappBackupReaderException {
+		String response;
+		try {
+			DaemonSockets.Client client = DaemonSockets.connect(socketPath);
+			try {
+				OutputStream out = Channels.newOutputStream(client.channel);
+				StringBuilder request = new StringBuilder();
+				if(client.token != null) {
+					request.append(Daemon.TOKEN).append('\t').append(client.token).append('\n');
+				}
+				request.append(String.join("\t", command)).append('\n');
+				out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+				out.flush();
+
+				BufferedReader in = new BufferedReader(new InputStreamReader(Channels.newInputStream(client.channel),
+						StandardCharsets.UTF_8));
+				response = in.readLine();
+			} finally {
+				client.channel.close();
+			}
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot reach daemon at " + socketPath, e);
+		}
+
+		if(response == null) {
+			throw new WhatsappBackupReaderException("No answer from daemon");
+		}
+		if(!response.startsWith(Daemon.OK)) {
+			throw new WhatsappBackupReaderException(response.startsWith(Daemon.ERROR)
+					? response.substring(Daemon.ERROR.length()).trim() : response);
+		}
+		return response.substring(Daemon.OK.length()).trim();
+	}
+}
@@ -0,0 +1,194 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+import java.util.List;
+
+/**
+ * Opens the socket between {@link Daemon} and {@link DaemonClient}. Unix domain sockets need Java 16, which is
+ * looked up at runtime as the code is compiled for Java 11. On older runtimes the daemon listens on the loopback
+ * interface instead and writes the port and a secret token to the socket path, readable only by its owner.
+ */
+class DaemonSockets {
+
+	private static final String TCP_PREFIX = "tcp ";
+	private static final int FILE_TYPE_MASK = 0170000;
+	private static final int FILE_TYPE_SOCKET = 0140000;
+
+	private DaemonSockets() {
+	}
+
+	/**
+	 * A listening socket, the token is null for Unix domain sockets.
+	 */
+	static class Server {
+		final ServerSocketChannel channel;
+		final String token;
+
+		Server(ServerSocketChannel channel, String token) {
+			this.channel = channel;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * A connection to the daemon, the token is null for Unix domain sockets.
+	 */
+	static class Client {
+		final SocketChannel channel;
+		final String token;
+
+		Client(SocketChannel channel, String token) {
+			this.channel = channel;
+			this.token = token;
+		}
+	}
+
+	/**
+	 * @throws IOException also if a daemon already listens on the path or the path is no daemon socket
+	 */
+	static Server listen(Path socketPath) throws IOException {
+		removeStale(socketPath);
+
+		SocketAddress address = unixAddress(socketPath);
+		if(address != null) {
+			ServerSocketChannel channel = openUnix(ServerSocketChannel.class);
+			channel.bind(address);
+			restrictToOwner(socketPath);
+			return new Server(channel, null);
+		}
+
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+
+		byte[] secret = new byte[16];
+		new SecureRandom().nextBytes(secret);
+		String token = CryptFiles.toHex(secret);
+		int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+
+		Files.createFile(socketPath);
+		restrictToOwner(socketPath);
+		Files.write(socketPath, (TCP_PREFIX + port + " " + token + "\n").getBytes(StandardCharsets.US_ASCII),
+				StandardOpenOption.TRUNCATE_EXISTING);
+		return new Server(channel, token);
+	}
+
+	static Client connect(Path socketPath) throws IOException {
+		if(Files.isRegularFile(socketPath)) {
+			String[] fields = readTokenFile(socketPath);
+			if(fields == null) {
+				throw new IOException("Not a daemon socket: " + socketPath);
+			}
+			SocketChannel channel = SocketChannel.open(
+					new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(fields[1])));
+			return new Client(channel, fields[2]);
+		}
+
+		SocketAddress address = unixAddress(socketPath);
+		if(address == null) {
+			throw new IOException("Unix domain sockets need Java 16 or newer");
+		}
+		SocketChannel channel = openUnix(SocketChannel.class);
+		channel.connect(address);
+		return new Client(channel, null);
+	}
+
+	/**
+	 * Deletes a socket or token file left behind by a daemon that is no longer running, e.g. after a crash. Anything
+	 * else at the path is kept, e.g. a database given by mistake, and so is the socket of a running daemon.
+	 */
+	private static void removeStale(Path socketPath) throws IOException {
+		if(!Files.exists(socketPath, LinkOption.NOFOLLOW_LINKS)) {
+			return;
+		}
+		boolean tokenFile = Files.isRegularFile(socketPath, LinkOption.NOFOLLOW_LINKS)
+				&& readTokenFile(socketPath) != null;
+		if(!tokenFile && !isSocket(socketPath)) {
+			throw new IOException("Not a daemon socket, refusing to replace it: " + socketPath);
+		}
+
+		boolean running;
+		try {
+			connect(socketPath).channel.close();
+			running = true;
+		} catch (IOException e) {
+			running = false;
+		}
+		if(running) {
+			throw new IOException("A daemon is already listening on " + socketPath);
+		}
+
+		Files.delete(socketPath);
+	}
+
+	/**
+	 * @return port and token of a token file written by {@link #listen(Path)}, null if the file is none
+	 */
+	private static String[] readTokenFile(Path socketPath) throws IOException {
+		if(Files.size(socketPath) > 256) {
+			return null;
+		}
+		List<String> lines = Files.readAllLines(socketPath, StandardCharsets.ISO_8859_1);
+		String[] fields = lines.size() == 1 ? lines.get(0).split(" ") : new String[0];
+		if(fields.length != 3 || !(fields[0] + " ").equals(TCP_PREFIX) || !fields[1].matches("[0-9]{1,5}")) {
+			return null;
+		}
+		return fields;
+	}
+
+	private static boolean isSocket(Path path) throws IOException {
+		try {
+			int mode = (Integer) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+			return (mode & FILE_TYPE_MASK) == FILE_TYPE_SOCKET;
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			// no unix attributes, sockets are the only other files a daemon creates
+			return Files.readAttributes(path, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS).isOther();
+		}
+	}
+
+	private static void restrictToOwner(Path socketPath) throws IOException {
+		try {
+			Files.setPosixFilePermissions(socketPath, PosixFilePermissions.fromString("rw-------"));
+		} catch (UnsupportedOperationException e) {
+			// no posix file system, e.g. windows
+		}
+	}
+
+	/**
+	 * @return the address, null if the runtime has no Unix domain sockets
+	 */
+	private static SocketAddress unixAddress(Path socketPath) {
+		try {
+			Class<?> addressClass = Class.forName("java.net.UnixDomainSocketAddress");
+			return (SocketAddress) addressClass.getMethod("of", Path.class).invoke(null, socketPath);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	private static <T> T openUnix(Class<T> channelClass) throws IOException {
+		try {
+			ProtocolFamily unix = StandardProtocolFamily.valueOf("UNIX");
+			return channelClass.cast(channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix));
+		} catch (ReflectiveOperationException | IllegalArgumentException e) {
+			if(e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Cannot open Unix domain socket", e);
+		}
+	}
+}
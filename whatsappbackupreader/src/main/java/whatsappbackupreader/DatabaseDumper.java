@@ -5,6 +5,8 @@ import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
@@ -15,18 +17,26 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.StringTokenizer;
+import java.util.TreeMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-public class DatabaseDumper {
+/**
+ * Decrypts a crypt file and adds the extra views. Closing the dumper releases the resources of its
+ * {@link WhatsappBackupReader}.
+ */
+public class DatabaseDumper implements AutoCloseable {
 	private static Logger logger = LogManager.getLogger(DatabaseDumper.class);
+	private Path cryptPath;
 	private Path outputPath;
 
 	private WhatsappBackupReader wbr;
 	private boolean createExtraSqlViews;
+	private OutputCache outputCache;
+	private DumpListener listener = new DumpListener() {};
 	
 	private List<String> sqlViewCmds;
 	
@@ -68,9 +78,34 @@ public class DatabaseDumper {
 		return new DatabaseDumper(cryptPath, key, outputPath);
 	}
 
+	/**
+	 * Uses an already derived key, e.g. to dump many files with the same key.
+	 */
+	public static DatabaseDumper of(Path cryptPath, BackupKey key, Path outputPath)
+			throws WhatsappBackupReaderException {
+		logger.info("Reading crypt file from '{}'", cryptPath);
+
+		return new DatabaseDumper(cryptPath, outputPath, new WhatsappBackupReader(cryptPath, key, outputPath));
+	}
+
+	/**
+	 * Reads the crypt file from a stream, channel or archive entry, e.g. {@link BackupSource#zipEntry(Path, String)}.
+	 */
+	public static DatabaseDumper of(BackupSource source, BackupKey key, Path outputPath)
+			throws WhatsappBackupReaderException {
+		logger.info("Reading crypt file from '{}'", source);
+
+		return new DatabaseDumper(source.getPath(), outputPath, new WhatsappBackupReader(source, key, outputPath));
+	}
+
 	private DatabaseDumper(Path cryptPath, byte[] key, Path outputPath) throws WhatsappBackupReaderException {
+		this(cryptPath, outputPath, new WhatsappBackupReader(cryptPath, key, outputPath));
+	}
+
+	private DatabaseDumper(Path cryptPath, Path outputPath, WhatsappBackupReader wbr) throws WhatsappBackupReaderException {
+		this.cryptPath = cryptPath;
 		this.outputPath = outputPath;
-		this.wbr = new WhatsappBackupReader(cryptPath, key, outputPath);
+		this.wbr = wbr;
 		
 		sqlViewCmds = new ArrayList<String>();
         try {
@@ -89,14 +124,51 @@ public class DatabaseDumper {
 	}
 
 	public void run() throws WhatsappBackupReaderException, SQLException {
+		String cacheKey = null;
+		boolean cached = outputCache != null && cryptPath != null;
+		if(cached) {
+			cacheKey = OutputCache.key(cryptPath, wbr.getBackupKey(), isCreateExtraSqlViews() ? viewsVariant() : null);
+			if(outputCache.fetch(cacheKey, outputPath)) {
+				return;
+			}
+		}
+
 		logger.info("Start dump");
+		listener.decrypting();
+		wbr.setProgressListener(listener);
 		wbr.decrypt();
 
+		listener.postProcessing();
 		if (isCreateExtraSqlViews()) {
 			logger.info("Creating extra views");
 			createExtraSqlViews();
 			logger.info("Done");
 		}
+
+		if(cached) {
+			outputCache.store(cacheKey, outputPath);
+		}
+	}
+
+	/**
+	 * The views depend on the contacts and the view definitions, so they are part of the cache key.
+	 */
+	private String viewsVariant() throws WhatsappBackupReaderException {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new WhatsappBackupReaderException("Cannot initialize md5", e);
+		}
+
+		for(String sql : sqlViewCmds) {
+			md5.update(sql.getBytes(StandardCharsets.UTF_8));
+		}
+		for(Map.Entry<String, String> contact : new TreeMap<String, String>(contacts).entrySet()) {
+			md5.update((contact.getKey() + ";" + contact.getValue() + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		return "views-" + CryptFiles.toHex(md5.digest()).substring(0, 16);
 	}
 	
 	private void resetContacts() {
@@ -109,20 +181,25 @@ public class DatabaseDumper {
 
 	private void createExtraSqlViews() throws SQLException {
 		String url = String.format("jdbc:sqlite:%s", outputPath);
-		Connection connection = DriverManager.getConnection(url);
-		connection.setAutoCommit(false);
-		Statement stmt = connection.createStatement();
-		for(String sql : this.sqlViewCmds) {
-			stmt.addBatch(sql);
+		try(Connection connection = DriverManager.getConnection(url);
+				Statement stmt = connection.createStatement()) {
+			connection.setAutoCommit(false);
+			for(String sql : this.sqlViewCmds) {
+				stmt.addBatch(sql);
+			}
+			
+			stmt.executeBatch();
+			
+			createContactsTable(connection);
+			createMessageTypesTable(connection);
+			
+			connection.commit();
 		}
-		
-		stmt.executeBatch();
-		
-		createContactsTable(connection);
-		createMessageTypesTable(connection);
-		
-		connection.commit();
-		connection.close();
+	}
+	
+	@Override
+	public void close() {
+		wbr.close();
 	}
 
 	private void createContactsTable(Connection connection) throws SQLException {
@@ -147,6 +224,64 @@ public class DatabaseDumper {
 		}
 	}
 
+	/**
+	 * @see WhatsappBackupReader#estimateMemory()
+	 */
+	public long estimateMemory() throws WhatsappBackupReaderException {
+		return wbr.estimateMemory();
+	}
+
+	/**
+	 * @return size of the crypt file, -1 if the source does not know it
+	 */
+	long cryptFileSize() throws WhatsappBackupReaderException {
+		return wbr.cryptFileSize();
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return wbr.getDecryptionMode();
+	}
+
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		wbr.setDecryptionMode(decryptionMode);
+	}
+
+	public FsyncPolicy getFsyncPolicy() {
+		return wbr.getFsyncPolicy();
+	}
+	
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		wbr.setFsyncPolicy(fsyncPolicy);
+	}
+	
+	public ChecksumVerification getChecksumVerification() {
+		return wbr.getChecksumVerification();
+	}
+
+	public void setChecksumVerification(ChecksumVerification checksumVerification) {
+		wbr.setChecksumVerification(checksumVerification);
+	}
+
+	public OutputCache getOutputCache() {
+		return outputCache;
+	}
+
+	/**
+	 * @param outputCache cache of decrypted databases, null to always decrypt. Only crypt files on disk are cached.
+	 * If the cache hard links its entries, the output must be treated as read only.
+	 */
+	public void setOutputCache(OutputCache outputCache) {
+		this.outputCache = outputCache;
+	}
+
+	public DumpListener getListener() {
+		return listener;
+	}
+
+	public void setListener(DumpListener listener) {
+		this.listener = listener;
+	}
+
 	public boolean isCreateExtraSqlViews() {
 		return createExtraSqlViews;
 	}
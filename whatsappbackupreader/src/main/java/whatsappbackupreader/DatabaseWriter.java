@@ -0,0 +1,305 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Writes a decrypted database through a file channel in large chunks, each starting at a multiple of the buffer
+ * size. The SQLite header in the first 100 bytes declares page size and page count, so the final size is known
+ * early: the file is extended to it at once instead of growing with every write, and progress can be reported as
+ * an exact fraction. Output that is no SQLite database is written all the same, only without a known size.
+ * <p>
+ * Except in the in-memory modes, the header is written before checksum and authentication tag have been verified,
+ * so a corrupt or crafted page count could declare up to 256 TiB. The declared size is therefore compared with the
+ * size of the crypt file, see {@link #setCryptSize(long)}: the file is only extended if the database is at most
+ * {@value #PREALLOCATE_RATIO} times larger, and a size deflate cannot produce from the crypt file is ignored.
+ * <p>
+ * The data goes to a temporary file next to the output path, which {@link #commit()} renames to the output path
+ * once the database has been verified. Closing the writer without commit deletes the temporary file, so the output
+ * path holds either the complete new database or whatever it held before.
+ * <p>
+ * Written to a channel of the caller instead, e.g. a pipe, the data cannot be taken back: the caller must discard it
+ * if the decryption fails. The channel is not closed.
+ */
+final class DatabaseWriter extends OutputStream {
+
+	static final int BUFFER_SIZE = 1024 * 1024;
+	static final int HEADER_LENGTH = 100;
+
+	private static final byte[] MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+	private static final long PERIODIC_FSYNC_SIZE = 64L * 1024 * 1024;
+	static final long PREALLOCATE_RATIO = 64;
+	/** Deflate compresses at most about 1032:1. */
+	private static final long MAX_COMPRESSION_RATIO = 1032;
+	private static final SecureRandom random = new SecureRandom();
+
+	private final Path path;
+	private final Path temp;
+	private final FsyncPolicy fsyncPolicy;
+	private final FileChannel file;
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	private final ProgressListener listener;
+
+	private final byte[] header = new byte[HEADER_LENGTH];
+	private long written;
+	private long expectedSize = -1;
+	private long cryptSize = -1;
+	private long synced;
+	private boolean extended;
+	private boolean closed;
+
+	/**
+	 * @param listener may be null
+	 */
+	DatabaseWriter(Path path, FsyncPolicy fsyncPolicy, ProgressListener listener) throws IOException {
+		this.path = path;
+		this.temp = path.resolveSibling(path.getFileName() + "." + Long.toHexString(random.nextLong() >>> 1) + ".tmp");
+		this.fsyncPolicy = fsyncPolicy;
+		this.file = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		this.channel = file;
+		this.buffer = DirectBufferPool.shared().acquire(BUFFER_SIZE);
+		this.listener = listener;
+	}
+
+	/**
+	 * Writes to the channel of the caller, which is neither preallocated nor forced.
+	 * @param listener may be null
+	 */
+	DatabaseWriter(WritableByteChannel channel, ProgressListener listener) {
+		this.path = null;
+		this.temp = null;
+		this.fsyncPolicy = FsyncPolicy.NONE;
+		this.file = null;
+		this.channel = channel;
+		this.buffer = DirectBufferPool.shared().acquire(BUFFER_SIZE);
+		this.listener = listener;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		write(ByteBuffer.wrap(b, off, len));
+	}
+
+	/**
+	 * Writes the remaining bytes of the buffer, its position is advanced to the limit.
+	 */
+	void write(ByteBuffer src) throws IOException {
+		if(closed) {
+			throw new IOException("Writer is closed");
+		}
+
+		if(written < HEADER_LENGTH) {
+			ByteBuffer headerPart = src.duplicate();
+			int n = (int) Math.min(headerPart.remaining(), HEADER_LENGTH - written);
+			headerPart.get(header, (int) written, n);
+			if(written + n == HEADER_LENGTH) {
+				expectedSize = databaseSize(header);
+				if(cryptSize >= 0 && expectedSize > MAX_COMPRESSION_RATIO * cryptSize) {
+					expectedSize = -1;
+				}
+			}
+		}
+
+		int limit = src.limit();
+		while(src.hasRemaining()) {
+			int n = Math.min(src.remaining(), buffer.remaining());
+			src.limit(src.position() + n);
+			buffer.put(src);
+			src.limit(limit);
+			written += n;
+
+			if(!buffer.hasRemaining()) {
+				writeBuffer();
+			}
+		}
+	}
+
+	private void writeBuffer() throws IOException {
+		buffer.flip();
+		while(buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+
+		// extend the file once its size is known, the first chunk holds the header
+		if(file != null && !extended && expectedSize > written && cryptSize >= 0
+				&& expectedSize <= PREALLOCATE_RATIO * cryptSize) {
+			file.write(ByteBuffer.allocate(1), expectedSize - 1);
+		}
+		extended = true;
+
+		if(fsyncPolicy == FsyncPolicy.PERIODIC && written - synced >= PERIODIC_FSYNC_SIZE) {
+			file.force(false);
+			synced = written;
+		}
+
+		if(listener != null) {
+			listener.progress(written, expectedSize);
+		}
+	}
+
+	/**
+	 * Does nothing, as writing the buffered bytes would break the alignment of later chunks. They are written by
+	 * {@link #commit()}.
+	 */
+	@Override
+	public void flush() {
+	}
+
+	/**
+	 * Writes the remaining bytes, cuts the file to the bytes written, in case the database was shorter than its
+	 * header declared, and renames it to the output path. Forces file and directory unless the policy is
+	 * {@link FsyncPolicy#NONE}. A channel of the caller only gets the remaining bytes.
+	 */
+	void commit() throws IOException {
+		if(closed) {
+			throw new IOException("Writer is closed");
+		}
+		closed = true;
+
+		if(file == null) {
+			try {
+				writeRemaining();
+			} finally {
+				DirectBufferPool.shared().release(buffer);
+			}
+			return;
+		}
+
+		try(FileChannel c = file) {
+			writeRemaining();
+			if(c.size() > written) {
+				c.truncate(written);
+			}
+			if(fsyncPolicy != FsyncPolicy.NONE) {
+				c.force(false);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		} finally {
+			DirectBufferPool.shared().release(buffer);
+		}
+
+		try {
+			Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		if(fsyncPolicy != FsyncPolicy.NONE) {
+			forceDirectory(path.toAbsolutePath().getParent());
+		}
+	}
+
+	private void writeRemaining() throws IOException {
+		if(buffer.position() > 0) {
+			writeBuffer();
+		} else if(listener != null) {
+			listener.progress(written, expectedSize);
+		}
+	}
+
+	/**
+	 * Deletes the temporary file if {@link #commit()} was not called.
+	 */
+	@Override
+	public void close() throws IOException {
+		if(closed) {
+			return;
+		}
+		closed = true;
+
+		try {
+			if(file != null) {
+				file.close();
+				Files.deleteIfExists(temp);
+			}
+		} finally {
+			DirectBufferPool.shared().release(buffer);
+		}
+	}
+
+	/**
+	 * Makes the rename durable. Not every platform can open a directory, e.g. windows, where this is skipped.
+	 */
+	private static void forceDirectory(Path directory) {
+		try(FileChannel c = FileChannel.open(directory, StandardOpenOption.READ)) {
+			c.force(true);
+		} catch (IOException e) {
+			// not supported
+		}
+	}
+
+	/**
+	 * Sets the size of the crypt file the database is decrypted from, before the first write. The file is never
+	 * extended if the size is unknown.
+	 * @param cryptSize number of bytes, -1 if unknown
+	 */
+	void setCryptSize(long cryptSize) {
+		this.cryptSize = cryptSize;
+	}
+
+	/**
+	 * @return size declared in the SQLite header, -1 if the header was not written yet or is no valid header
+	 */
+	long getExpectedSize() {
+		return expectedSize;
+	}
+
+	long getWritten() {
+		return written;
+	}
+
+	/**
+	 * The page count is only valid if the version-valid-for number matches the change counter, older SQLite
+	 * versions did not update it.
+	 * @return page size times page count, -1 if unknown
+	 */
+	static long databaseSize(byte[] header) {
+		if(header.length < HEADER_LENGTH || !Arrays.equals(MAGIC, Arrays.copyOf(header, MAGIC.length))) {
+			return -1;
+		}
+
+		long pageSize = readUnsigned(header, 16, 2);
+		if(pageSize == 1) {
+			pageSize = 65536;
+		}
+		if(pageSize < 512 || Long.bitCount(pageSize) != 1) {
+			return -1;
+		}
+
+		long changeCounter = readUnsigned(header, 24, 4);
+		long pageCount = readUnsigned(header, 28, 4);
+		long versionValidFor = readUnsigned(header, 92, 4);
+		if(pageCount == 0 || changeCounter != versionValidFor) {
+			return -1;
+		}
+
+		return pageSize * pageCount;
+	}
+
+	private static long readUnsigned(byte[] b, int offset, int length) {
+		long v = 0;
+		for(int i = 0; i < length; i++) {
+			v = (v << 8) | (b[offset + i] & 0xff);
+		}
+		return v;
+	}
+}
@@ -0,0 +1,39 @@
+package whatsappbackupreader;
+
+/**
+ * Selects how {@link WhatsappBackupReader} processes a backup.
+ */
+public enum DecryptionMode {
+	/**
+	 * Reads the whole file into memory and decrypts it in one go. Needs more than twice the backup size as heap.
+	 * Files larger than 2 GiB cannot be held in an array and are decrypted in {@link #STREAMING} mode instead.
+	 */
+	IN_MEMORY,
+
+	/**
+	 * Reads, decrypts, inflates and writes the file in fixed-size chunks with constant memory use.
+	 * The output is written before the checksum and authentication tag are known and only moved into place if both match.
+	 */
+	STREAMING,
+
+	/**
+	 * Reads the whole file into memory like {@link #IN_MEMORY}, but decrypts and authenticates it in
+	 * independent segments on a fork-join pool. The plaintext is only inflated once the tag has been checked.
+	 * Files larger than 2 GiB are decrypted in {@link #STREAMING} mode instead.
+	 */
+	PARALLEL,
+
+	/**
+	 * Like {@link #STREAMING}, but reading, decryption, inflation and writing run on their own threads and pass
+	 * chunks through bounded queues, so that I/O and CPU work overlap. The stall times of the stages are
+	 * available from {@link WhatsappBackupReader#getPipelineStatistics()} afterwards.
+	 */
+	PIPELINED,
+
+	/**
+	 * Maps the file into memory window by window and decrypts, inflates and writes it through direct buffers and
+	 * channels, avoiding copies to the heap. Like {@link #STREAMING} it uses constant memory and discards the output
+	 * if the checksum or the authentication tag does not match.
+	 */
+	MAPPED
+}
@@ -0,0 +1,224 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import whatsappbackupreader.PipelineStatistics.Stage;
+
+/**
+ * Runs reading, decryption, inflation and writing on separate threads. The stages pass chunks from two fixed
+ * pools through bounded queues, so memory use is constant and a slow stage throttles the others.
+ */
+class DecryptionPipeline {
+
+	private static final AtomicInteger pipelineNumber = new AtomicInteger();
+
+	private static class Chunk {
+		final byte[] data;
+		int length;
+
+		Chunk(int size) {
+			data = new byte[size];
+		}
+	}
+
+	/** Marks the end of the stream in a queue. */
+	private static final Chunk END = new Chunk(0);
+
+	private final InputStream in;
+	private final GcmDecryptor gcm;
+	private final OutputStream out;
+
+	private final BlockingQueue<Chunk> freeInput;
+	private final BlockingQueue<Chunk> freeOutput;
+	private final BlockingQueue<Chunk> read;
+	private final BlockingQueue<Chunk> decrypted;
+	private final BlockingQueue<Chunk> inflated;
+
+	private final PipelineStatistics statistics = new PipelineStatistics();
+	private DataFormatException inflateError;
+
+	DecryptionPipeline(InputStream in, GcmDecryptor gcm, OutputStream out, int chunkSize, int depth) {
+		this.in = in;
+		this.gcm = gcm;
+		this.out = out;
+
+		freeInput = new ArrayBlockingQueue<Chunk>(depth);
+		freeOutput = new ArrayBlockingQueue<Chunk>(depth);
+		for(int i = 0; i < depth; i++) {
+			freeInput.add(new Chunk(chunkSize));
+			freeOutput.add(new Chunk(chunkSize));
+		}
+
+		// one more slot than chunks, so that the end marker always fits
+		read = new ArrayBlockingQueue<Chunk>(depth + 1);
+		decrypted = new ArrayBlockingQueue<Chunk>(depth + 1);
+		inflated = new ArrayBlockingQueue<Chunk>(depth + 1);
+	}
+
+	/**
+	 * Runs all stages until the input is exhausted. An inflate error does not stop the pipeline, as the whole
+	 * input must still be authenticated. It is available through {@link #getInflateError()} afterwards.
+	 */
+	PipelineStatistics run() throws WhatsappBackupReaderException, IOException {
+		int number = pipelineNumber.incrementAndGet();
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(Stage.values().length, r -> {
+			Thread t = new Thread(r, "decryption-pipeline-" + number + "-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		long start = System.nanoTime();
+		try {
+			CompletionService<Void> stages = new ExecutorCompletionService<Void>(executor);
+			List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+			tasks.add(this::readStage);
+			tasks.add(this::decryptStage);
+			tasks.add(this::inflateStage);
+			tasks.add(this::writeStage);
+			for(Callable<Void> task : tasks) {
+				stages.submit(task);
+			}
+
+			for(int i = 0; i < tasks.size(); i++) {
+				try {
+					stages.take().get();
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if(cause instanceof WhatsappBackupReaderException) {
+						throw (WhatsappBackupReaderException) cause;
+					}
+					if(cause instanceof IOException) {
+						throw (IOException) cause;
+					}
+					throw new WhatsappBackupReaderException("Decryption pipeline failed", cause);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while decrypting", e);
+		} finally {
+			// interrupts the remaining stages if one of them failed
+			executor.shutdownNow();
+		}
+
+		statistics.setElapsedNanos(System.nanoTime() - start);
+		return statistics;
+	}
+
+	DataFormatException getInflateError() {
+		return inflateError;
+	}
+
+	private Void readStage() throws IOException, InterruptedException {
+		while(true) {
+			Chunk chunk = takeFree(freeInput, Stage.READ);
+			chunk.length = in.readNBytes(chunk.data, 0, chunk.data.length);
+			if(chunk.length == 0) {
+				put(read, END, Stage.READ);
+				return null;
+			}
+			statistics.addBytesRead(chunk.length);
+			put(read, chunk, Stage.READ);
+		}
+	}
+
+	private Void decryptStage() throws WhatsappBackupReaderException, InterruptedException {
+		while(true) {
+			Chunk chunk = take(read, Stage.DECRYPT);
+			if(chunk == END) {
+				put(decrypted, END, Stage.DECRYPT);
+				return null;
+			}
+			gcm.update(chunk.data, 0, chunk.length, chunk.data, 0);
+			put(decrypted, chunk, Stage.DECRYPT);
+		}
+	}
+
+	private Void inflateStage() throws InterruptedException {
+		Inflater zlib = new Inflater(false);
+		try {
+			while(true) {
+				Chunk chunk = take(decrypted, Stage.INFLATE);
+				if(chunk == END) {
+					put(inflated, END, Stage.INFLATE);
+					return null;
+				}
+
+				if(inflateError == null) {
+					inflate(zlib, chunk);
+				}
+				freeInput.put(chunk);
+			}
+		} finally {
+			zlib.end();
+		}
+	}
+
+	private void inflate(Inflater zlib, Chunk chunk) throws InterruptedException {
+		zlib.setInput(chunk.data, 0, chunk.length);
+		try {
+			while(!zlib.needsInput() && !zlib.finished()) {
+				Chunk target = takeFree(freeOutput, Stage.INFLATE);
+				target.length = zlib.inflate(target.data, 0, target.data.length);
+				if(target.length > 0) {
+					put(inflated, target, Stage.INFLATE);
+				} else {
+					freeOutput.put(target);
+				}
+			}
+		} catch (DataFormatException e) {
+			inflateError = e;
+		}
+	}
+
+	private Void writeStage() throws IOException, InterruptedException {
+		while(true) {
+			Chunk chunk = take(inflated, Stage.WRITE);
+			if(chunk == END) {
+				return null;
+			}
+			out.write(chunk.data, 0, chunk.length);
+			statistics.addBytesWritten(chunk.length);
+			freeOutput.put(chunk);
+		}
+	}
+
+	private Chunk take(BlockingQueue<Chunk> queue, Stage stage) throws InterruptedException {
+		long start = System.nanoTime();
+		Chunk chunk = queue.take();
+		statistics.addInputStall(stage, System.nanoTime() - start);
+		return chunk;
+	}
+
+	/**
+	 * Waiting for a free buffer means a later stage is behind, so it counts as output stall.
+	 */
+	private Chunk takeFree(BlockingQueue<Chunk> pool, Stage stage) throws InterruptedException {
+		long start = System.nanoTime();
+		Chunk chunk = pool.take();
+		statistics.addOutputStall(stage, System.nanoTime() - start);
+		return chunk;
+	}
+
+	private void put(BlockingQueue<Chunk> queue, Chunk chunk, Stage stage) throws InterruptedException {
+		long start = System.nanoTime();
+		queue.put(chunk);
+		statistics.addOutputStall(stage, System.nanoTime() - start);
+	}
+}
@@ -0,0 +1,230 @@
+package whatsappbackupreader;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs decryptions concurrently as long as their estimated peak memory fits into a budget. Of the waiting jobs,
+ * the one with the largest crypt file whose memory fits is started first, so that the long running jobs do not end
+ * up last. A job larger than the whole budget is started when no other job is running.
+ * <p>
+ * Jobs start as soon as they are submitted. To order a whole batch, submit it between {@link #hold()} and
+ * {@link #release()}.
+ */
+public class DecryptionScheduler implements AutoCloseable {
+
+	private static Logger logger = LogManager.getLogger(DecryptionScheduler.class);
+
+	private static final AtomicInteger schedulerNumber = new AtomicInteger();
+
+	private static class Job<T> extends FutureTask<T> {
+		final long memory;
+		final long size;
+
+		Job(Callable<T> task, long memory, long size) {
+			super(task);
+			this.memory = memory;
+			this.size = size;
+		}
+	}
+
+	private final long memoryBudget;
+	private final int threads;
+	private final ExecutorService executor;
+
+	/** Waiting jobs, largest crypt file first. */
+	private final List<Job<?>> pending = new ArrayList<Job<?>>();
+	private long inFlightBytes;
+	private int running;
+	private boolean held;
+	private boolean closed;
+
+	/**
+	 * Uses three quarters of the maximum heap size as budget and one thread per processor.
+	 */
+	public DecryptionScheduler() {
+		this(Runtime.getRuntime().maxMemory() / 4 * 3, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param memoryBudget number of bytes all running jobs may use together
+	 * @param threads maximum number of jobs running at the same time
+	 */
+	public DecryptionScheduler(long memoryBudget, int threads) {
+		if(memoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive");
+		}
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+
+		this.memoryBudget = memoryBudget;
+		this.threads = threads;
+
+		int number = schedulerNumber.incrementAndGet();
+		this.executor = TaskExecutors.newIoExecutor("decryption-scheduler-" + number, threads);
+	}
+
+	/**
+	 * The reader is closed when the job is done.
+	 */
+	public Future<Void> submit(WhatsappBackupReader reader) throws WhatsappBackupReaderException {
+		return submit(() -> {
+			try(WhatsappBackupReader r = reader) {
+				r.decrypt();
+			}
+			return null;
+		}, reader.estimateMemory(), reader.cryptFileSize());
+	}
+
+	/**
+	 * The dumper is closed when the job is done.
+	 */
+	public Future<Void> submit(DatabaseDumper dumper) throws WhatsappBackupReaderException {
+		return submit(() -> {
+			try(DatabaseDumper d = dumper) {
+				d.run();
+			}
+			return null;
+		}, dumper.estimateMemory(), dumper.cryptFileSize());
+	}
+
+	/**
+	 * Orders the task by its memory estimate, as no file size is known.
+	 * @param memory estimated peak memory of the task in bytes
+	 */
+	public <T> Future<T> submit(Callable<T> task, long memory) {
+		return submit(task, memory, memory);
+	}
+
+	/**
+	 * @param memory estimated peak memory of the task in bytes
+	 * @param size size of the crypt file in bytes, which the running time grows with
+	 */
+	public synchronized <T> Future<T> submit(Callable<T> task, long memory, long size) {
+		if(closed) {
+			throw new IllegalStateException("Scheduler is closed");
+		}
+
+		Job<T> job = new Job<T>(task, memory, size);
+		int i = 0;
+		while(i < pending.size() && pending.get(i).size >= size) {
+			i++;
+		}
+		pending.add(i, job);
+
+		dispatch();
+		return job;
+	}
+
+	/**
+	 * Keeps submitted jobs waiting until {@link #release()}, so that a batch is started largest first instead of
+	 * in the order it was submitted.
+	 */
+	public synchronized void hold() {
+		held = true;
+	}
+
+	/**
+	 * Starts the jobs submitted since {@link #hold()}.
+	 */
+	public synchronized void release() {
+		held = false;
+		dispatch();
+	}
+
+	/**
+	 * @return number of jobs waiting to be started
+	 */
+	public synchronized int getQueueDepth() {
+		return pending.size();
+	}
+
+	/**
+	 * @return estimated memory of all running jobs in bytes
+	 */
+	public synchronized long getInFlightBytes() {
+		return inFlightBytes;
+	}
+
+	public synchronized int getRunning() {
+		return running;
+	}
+
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Starts held jobs, waits until all submitted jobs are done and stops the threads.
+	 */
+	@Override
+	public void close() throws WhatsappBackupReaderException {
+		try {
+			synchronized(this) {
+				closed = true;
+				release();
+				while(!pending.isEmpty() || running > 0) {
+					wait();
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while waiting for decryptions", e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	private void dispatch() {
+		while(!held && running < threads && !pending.isEmpty()) {
+			Job<?> job = null;
+			for(Job<?> candidate : pending) {
+				if(inFlightBytes + candidate.memory <= memoryBudget) {
+					job = candidate;
+					break;
+				}
+			}
+			if(job == null && running == 0) {
+				job = pending.get(0);
+				logger.warn(String.format("Job needs %d bytes, more than the budget of %d bytes", job.memory,
+						memoryBudget));
+			}
+			if(job == null) {
+				return;
+			}
+
+			pending.remove(job);
+			inFlightBytes += job.memory;
+			running++;
+
+			Job<?> started = job;
+			executor.execute(() -> {
+				try {
+					started.run();
+				} finally {
+					finished(started);
+				}
+			});
+		}
+	}
+
+	private synchronized void finished(Job<?> job) {
+		inFlightBytes -= job.memory;
+		running--;
+		dispatch();
+		notifyAll();
+	}
+}
@@ -0,0 +1,57 @@
+package whatsappbackupreader;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+
+/**
+ * Keeps direct buffers for the next decryption. The native memory of a direct buffer is only freed after the
+ * garbage collector found it unreachable, so allocating new ones for every file lets the process grow far beyond
+ * the heap. The pool holds a limited number of buffers, further ones are left to the garbage collector.
+ */
+final class DirectBufferPool {
+
+	private static final DirectBufferPool shared = new DirectBufferPool(4 * Runtime.getRuntime().availableProcessors());
+
+	private final int maxBuffers;
+	private final Deque<ByteBuffer> buffers = new ArrayDeque<ByteBuffer>();
+
+	DirectBufferPool(int maxBuffers) {
+		this.maxBuffers = maxBuffers;
+	}
+
+	/**
+	 * @return the pool used for decryption and output buffers
+	 */
+	static DirectBufferPool shared() {
+		return shared;
+	}
+
+	/**
+	 * @return a cleared buffer of exactly the given capacity
+	 */
+	synchronized ByteBuffer acquire(int capacity) {
+		Iterator<ByteBuffer> it = buffers.iterator();
+		while(it.hasNext()) {
+			ByteBuffer buffer = it.next();
+			if(buffer.capacity() == capacity) {
+				it.remove();
+				buffer.clear();
+				return buffer;
+			}
+		}
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Returns the buffer to the pool, it must not be used by the caller anymore.
+	 */
+	synchronized void release(ByteBuffer buffer) {
+		if(buffers.size() >= maxBuffers) {
+			// the least recently returned one
+			buffers.removeLast();
+		}
+		buffers.addFirst(buffer);
+	}
+}
@@ -0,0 +1,24 @@
+package whatsappbackupreader;
+
+/**
+ * Is told about the progress of {@link DatabaseDumper#run()}. The methods are called on the thread running the dump,
+ * except {@link #progress(long, long)}, which is called on the thread writing the output.
+ */
+public interface DumpListener extends ProgressListener {
+
+	/**
+	 * Decryption starts. Not called if the output is taken from the cache.
+	 */
+	default void decrypting() {
+	}
+
+	@Override
+	default void progress(long written, long total) {
+	}
+
+	/**
+	 * Decryption is done, the extra views are created and the output is stored in the cache next.
+	 */
+	default void postProcessing() {
+	}
+}
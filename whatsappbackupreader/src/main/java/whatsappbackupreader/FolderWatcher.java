@@ -0,0 +1,342 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decrypts crypt files as soon as they appear in a directory tree. A file is decrypted once its size and
+ * modification time did not change for a quiet period, so files that are still being uploaded are not read. Files
+ * already present when watching starts are decrypted if their output is missing or older. The decryptions run on a
+ * fixed number of threads; when their queue is full, watching pauses until there is room again.
+ */
+public class FolderWatcher implements AutoCloseable {
+
+	private static Logger logger = LogManager.getLogger(FolderWatcher.class);
+
+	private static class Candidate {
+		long size;
+		long modified;
+		long lastChange;
+
+		Candidate(long size, long modified, long lastChange) {
+			this.size = size;
+			this.modified = modified;
+			this.lastChange = lastChange;
+		}
+	}
+
+	private final BatchDecryptor decryptor;
+	private final Path inputDirectory;
+	private final Path outputDirectory;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int queueCapacity = 16;
+	private long quietPeriod = TimeUnit.SECONDS.toMillis(5);
+	private Consumer<BatchResult> resultHandler = result -> { };
+
+	private WatchService watchService;
+	private ThreadPoolExecutor executor;
+	private volatile boolean closed;
+
+	private final Map<WatchKey, Path> directories = new HashMap<WatchKey, Path>();
+	private final Map<Path, Candidate> candidates = new HashMap<Path, Candidate>();
+	private final Set<Path> inProgress = ConcurrentHashMap.newKeySet();
+
+	public FolderWatcher(BackupKey key, Path inputDirectory, Path outputDirectory) {
+		this.decryptor = new BatchDecryptor(key, outputDirectory);
+		this.inputDirectory = inputDirectory;
+		this.outputDirectory = outputDirectory;
+	}
+
+	/**
+	 * Watches until {@link #close()} is called from another thread or the thread is interrupted.
+	 */
+	public void run() throws WhatsappBackupReaderException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<Runnable>(queueCapacity), r -> {
+					Thread t = new Thread(r, "folder-watcher-" + threadNumber.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}, (r, e) -> {
+					// wait for room instead of dropping the file
+					try {
+						e.getQueue().put(r);
+					} catch (InterruptedException e1) {
+						Thread.currentThread().interrupt();
+					}
+				});
+
+		try {
+			watchService = FileSystems.getDefault().newWatchService();
+			register(inputDirectory);
+			logger.info("Watching {}", inputDirectory);
+
+			while(!closed) {
+				WatchKey key = candidates.isEmpty() ? watchService.take()
+						: watchService.poll(Math.max(1, quietPeriod / 4), TimeUnit.MILLISECONDS);
+				if(key != null) {
+					handle(key);
+				}
+				submitStableFiles();
+			}
+		} catch (ClosedWatchServiceException e) {
+			// closed
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot watch " + inputDirectory, e);
+		} finally {
+			shutdown();
+		}
+	}
+
+	/**
+	 * Stops watching. {@link #run()} returns after the running decryptions are done, queued ones are dropped.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		if(watchService != null) {
+			try {
+				watchService.close();
+			} catch (IOException e) {
+				logger.warn("Cannot close watch service: " + e.getMessage());
+			}
+		}
+	}
+
+	private void shutdown() {
+		closed = true;
+		executor.getQueue().clear();
+		executor.shutdown();
+		try {
+			executor.awaitTermination(1, TimeUnit.HOURS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		close();
+	}
+
+	/**
+	 * Registers the directory and all directories below, and adds the crypt files in them without up to date output.
+	 */
+	private void register(Path directory) throws IOException {
+		try(Stream<Path> stream = Files.walk(directory)) {
+			for(Path path : stream.collect(Collectors.toList())) {
+				if(Files.isDirectory(path)) {
+					WatchKey key = path.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+							StandardWatchEventKinds.ENTRY_MODIFY);
+					directories.put(key, path);
+				} else if(CryptFiles.isCryptFile(path) && !isUpToDate(path)) {
+					changed(path);
+				}
+			}
+		}
+	}
+
+	private void handle(WatchKey key) throws IOException {
+		Path directory = directories.get(key);
+		for(WatchEvent<?> event : key.pollEvents()) {
+			if(event.kind() == StandardWatchEventKinds.OVERFLOW) {
+				logger.warn("Missed events in {}, scanning again", directory);
+				register(directory);
+				continue;
+			}
+
+			Path path = directory.resolve((Path) event.context());
+			if(Files.isDirectory(path)) {
+				if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+					register(path);
+				}
+			} else if(CryptFiles.isCryptFile(path)) {
+				changed(path);
+			}
+		}
+
+		if(!key.reset()) {
+			directories.remove(key);
+		}
+	}
+
+	private void changed(Path path) {
+		try {
+			Candidate candidate = candidates.get(path);
+			long size = Files.size(path);
+			long modified = Files.getLastModifiedTime(path).toMillis();
+			if(candidate == null) {
+				candidates.put(path, new Candidate(size, modified, System.currentTimeMillis()));
+			} else if(candidate.size != size || candidate.modified != modified) {
+				candidate.size = size;
+				candidate.modified = modified;
+				candidate.lastChange = System.currentTimeMillis();
+			}
+		} catch (IOException e) {
+			// deleted or renamed in the meantime
+			candidates.remove(path);
+		}
+	}
+
+	/**
+	 * Submits the files that did not change for the quiet period.
+	 */
+	private void submitStableFiles() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator();
+		while(it.hasNext()) {
+			Map.Entry<Path, Candidate> entry = it.next();
+			Path path = entry.getKey();
+			Candidate candidate = entry.getValue();
+			if(now - candidate.lastChange < quietPeriod) {
+				continue;
+			}
+
+			// modifications without events, e.g. on network file systems
+			long size;
+			long modified;
+			try {
+				size = Files.size(path);
+				modified = Files.getLastModifiedTime(path).toMillis();
+			} catch (IOException e) {
+				it.remove();
+				continue;
+			}
+			if(candidate.size != size || candidate.modified != modified) {
+				candidate.size = size;
+				candidate.modified = modified;
+				candidate.lastChange = now;
+				continue;
+			}
+			if(inProgress.contains(path)) {
+				continue;
+			}
+
+			it.remove();
+			inProgress.add(path);
+			executor.execute(() -> {
+				try {
+					resultHandler.accept(decrypt(path));
+				} finally {
+					inProgress.remove(path);
+				}
+			});
+		}
+	}
+
+	private BatchResult decrypt(Path file) {
+		Path output = outputPath(file);
+		Path temp = output.resolveSibling(output.getFileName() + ".tmp");
+
+		BatchResult result = decryptor.decrypt(file, temp);
+		try {
+			if(result.isOk()) {
+				Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+				logger.info("Decrypted {} to {}", file, output);
+			} else {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			return new BatchResult(file, output, BatchResult.Status.FAILED, result.getSize(), 0,
+					result.getElapsedNanos(), e.getMessage());
+		}
+
+		return new BatchResult(file, output, result.getStatus(), result.getSize(), result.getOutputSize(),
+				result.getElapsedNanos(), result.getMessage());
+	}
+
+	private Path outputPath(Path file) {
+		Path output = outputDirectory.resolve(inputDirectory.relativize(file));
+		return output.resolveSibling(CryptFiles.stripCryptExtension(output.getFileName().toString()));
+	}
+
+	private boolean isUpToDate(Path file) throws IOException {
+		Path output = outputPath(file);
+		return Files.exists(output)
+				&& Files.getLastModifiedTime(output).compareTo(Files.getLastModifiedTime(file)) >= 0;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	public int getQueueCapacity() {
+		return queueCapacity;
+	}
+
+	/**
+	 * @param queueCapacity number of stable files waiting for a free thread before watching pauses
+	 */
+	public void setQueueCapacity(int queueCapacity) {
+		if(queueCapacity <= 0) {
+			throw new IllegalArgumentException("Queue capacity must be positive");
+		}
+		this.queueCapacity = queueCapacity;
+	}
+
+	public long getQuietPeriod() {
+		return quietPeriod;
+	}
+
+	/**
+	 * @param quietPeriod milliseconds a file must not change before it is decrypted
+	 */
+	public void setQuietPeriod(long quietPeriod) {
+		if(quietPeriod < 0) {
+			throw new IllegalArgumentException("Quiet period must not be negative");
+		}
+		this.quietPeriod = quietPeriod;
+	}
+
+	/**
+	 * @param resultHandler is called on a decryption thread after each file
+	 */
+	public void setResultHandler(Consumer<BatchResult> resultHandler) {
+		this.resultHandler = resultHandler;
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return decryptor.getDecryptionMode();
+	}
+
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		decryptor.setDecryptionMode(decryptionMode);
+	}
+
+	public boolean isCreateExtraSqlViews() {
+		return decryptor.isCreateExtraSqlViews();
+	}
+
+	public void setCreateExtraSqlViews(boolean createExtraSqlViews) {
+		decryptor.setCreateExtraSqlViews(createExtraSqlViews);
+	}
+}
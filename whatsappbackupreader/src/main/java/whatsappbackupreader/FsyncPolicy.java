@@ -0,0 +1,25 @@
+package whatsappbackupreader;
+
+/**
+ * Selects when the decrypted database is forced to the storage device. The output is always written to a temporary
+ * file next to the output path and renamed once complete, so other processes never see a partial database. Without
+ * forcing the data, a crash of the operating system shortly after the rename may still leave an empty or partial file
+ * on some file systems.
+ */
+public enum FsyncPolicy {
+	/**
+	 * Leaves writing to the operating system. Fastest, but only safe against crashes of the process.
+	 */
+	NONE,
+
+	/**
+	 * Forces the file once before it is renamed and the directory after.
+	 */
+	AT_END,
+
+	/**
+	 * Like {@link #AT_END}, and additionally after every 64 MiB, so that the operating system never holds much
+	 * unwritten data of a large database.
+	 */
+	PERIODIC
+}
@@ -0,0 +1,193 @@
+package whatsappbackupreader;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * AES-GCM decryption split into its CTR and GHASH parts, so that plaintext can be produced
+ * chunk by chunk instead of being held back until the tag was checked, as the JDK's
+ * AES/GCM/NoPadding does. Callers must not use the plaintext before {@link #verify(byte[])} succeeded.
+ */
+final class GcmDecryptor {
+
+	private static final int BLOCK_SIZE = 16;
+	private static final long COUNTER_RANGE = 1L << 32;
+
+	static final String ECB = "AES/ECB/NoPadding";
+	static final String CTR = "AES/CTR/NoPadding";
+
+	private final SecretKeySpec keySpec;
+	private final byte[] h;
+	private final byte[] j0;
+	private final byte[] tagMask;
+	private final Ghash ghash;
+	private final Cipher ctr;
+
+	private long position;
+	private long nextWrap;
+
+	GcmDecryptor(byte[] key, byte[] iv) throws WhatsappBackupReaderException {
+		this(key, iv, newCipher(ECB), newCipher(CTR));
+	}
+
+	/**
+	 * Uses the given ciphers instead of looking up new ones, e.g. to reuse them for the next file. Both are
+	 * initialized again, so their previous state does not matter.
+	 * @param ecb an AES/ECB/NoPadding cipher
+	 * @param ctr an AES/CTR/NoPadding cipher, which this decryptor uses until it is no longer needed
+	 */
+	GcmDecryptor(byte[] key, byte[] iv, Cipher ecb, Cipher ctr) throws WhatsappBackupReaderException {
+		this.keySpec = new SecretKeySpec(key, "AES");
+
+		try {
+			ecb.init(Cipher.ENCRYPT_MODE, keySpec);
+			this.h = ecb.doFinal(new byte[BLOCK_SIZE]);
+
+			// crypt15 uses a 16 byte IV, so the pre-counter block is derived by GHASH
+			Ghash ivHash = new Ghash(h);
+			ivHash.update(iv, 0, iv.length);
+			this.j0 = ivHash.finish();
+			this.tagMask = ecb.doFinal(j0);
+		} catch (GeneralSecurityException e) {
+			throw new WhatsappBackupReaderException("Could not initialize cipher", e);
+		}
+
+		this.ctr = ctr;
+		this.ghash = new Ghash(h);
+		initCounter(0);
+	}
+
+	private GcmDecryptor(GcmDecryptor parent, long offset) throws WhatsappBackupReaderException {
+		this.keySpec = parent.keySpec;
+		this.h = parent.h;
+		this.j0 = parent.j0;
+		this.tagMask = parent.tagMask;
+
+		this.ctr = newCipher(CTR);
+		this.ghash = new Ghash(h);
+		initCounter(offset);
+	}
+
+	static Cipher newCipher(String transformation) throws WhatsappBackupReaderException {
+		try {
+			return Cipher.getInstance(transformation);
+		} catch (GeneralSecurityException e) {
+			throw new WhatsappBackupReaderException("Could not initialize cipher", e);
+		}
+	}
+
+	/**
+	 * Creates a decryptor for the ciphertext starting at the given offset, which must be a multiple of the
+	 * block size. Its hash only covers the segment and is combined with the others by {@link #append}.
+	 */
+	GcmDecryptor segment(long offset) throws WhatsappBackupReaderException {
+		if(offset % BLOCK_SIZE != 0) {
+			throw new IllegalArgumentException("Segment offset must be a multiple of the block size");
+		}
+		return new GcmDecryptor(this, offset);
+	}
+
+	/**
+	 * Adds the hash of the directly following segment to the hash of this decryptor.
+	 */
+	void append(GcmDecryptor next) {
+		ghash.append(next.ghash);
+	}
+
+	/**
+	 * Decrypts the next piece of ciphertext. Input and output may be the same array.
+	 */
+	void update(byte[] in, int inOffset, int len, byte[] out, int outOffset) throws WhatsappBackupReaderException {
+		ghash.update(in, inOffset, len);
+
+		while(len > 0) {
+			int n = (int) Math.min(len, nextWrap - position);
+			try {
+				ctr.update(in, inOffset, n, out, outOffset);
+			} catch (ShortBufferException e) {
+				throw new WhatsappBackupReaderException("Could not decrypt", e);
+			}
+			position += n;
+			inOffset += n;
+			outOffset += n;
+			len -= n;
+
+			if(position == nextWrap) {
+				initCounter(position);
+			}
+		}
+	}
+
+	/**
+	 * Only hashes the next piece of ciphertext without decrypting it, for checking the tag alone.
+	 */
+	void authenticate(byte[] in, int inOffset, int len) {
+		ghash.update(in, inOffset, len);
+	}
+
+	/**
+	 * Decrypts the remaining bytes of {@code in} into {@code out}, both positions are advanced.
+	 */
+	void update(ByteBuffer in, ByteBuffer out) throws WhatsappBackupReaderException {
+		ghash.update(in.duplicate());
+
+		int limit = in.limit();
+		while(in.hasRemaining()) {
+			int n = (int) Math.min(in.remaining(), nextWrap - position);
+			in.limit(in.position() + n);
+			try {
+				ctr.update(in, out);
+			} catch (ShortBufferException e) {
+				throw new WhatsappBackupReaderException("Could not decrypt", e);
+			} finally {
+				in.limit(limit);
+			}
+			position += n;
+
+			if(position == nextWrap) {
+				initCounter(position);
+			}
+		}
+	}
+
+	/**
+	 * Checks the authentication tag against all ciphertext passed to {@link #update}.
+	 */
+	boolean verify(byte[] tag) {
+		byte[] s = ghash.finish();
+		for(int i = 0; i < BLOCK_SIZE; i++) {
+			s[i] ^= tagMask[i];
+		}
+		return MessageDigest.isEqual(s, tag);
+	}
+
+	/**
+	 * GCM only increments the lower 32 bits of the counter, whereas the JDK's CTR mode carries into
+	 * the upper bits. The CTR cipher is therefore restarted whenever the lower word wraps around.
+	 */
+	private void initCounter(long offset) throws WhatsappBackupReaderException {
+		long block = offset / BLOCK_SIZE;
+		long low = ((Ghash.getLong(j0, 8) & 0xffffffffL) + 1 + block) % COUNTER_RANGE;
+
+		byte[] counter = j0.clone();
+		counter[12] = (byte) (low >>> 24);
+		counter[13] = (byte) (low >>> 16);
+		counter[14] = (byte) (low >>> 8);
+		counter[15] = (byte) low;
+
+		try {
+			ctr.init(Cipher.DECRYPT_MODE, keySpec, new IvParameterSpec(counter));
+		} catch (GeneralSecurityException e) {
+			throw new WhatsappBackupReaderException("Could not initialize cipher", e);
+		}
+
+		this.position = offset;
+		this.nextWrap = offset + (COUNTER_RANGE - low) * BLOCK_SIZE;
+	}
+}
@@ -0,0 +1,272 @@
+package whatsappbackupreader;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Incremental GHASH as defined in NIST SP 800-38D, using Shoup's 4-bit tables.
+ * Data may be fed in arbitrary pieces, incomplete blocks are buffered until the
+ * next update or until the hash is finished.
+ */
+final class Ghash {
+
+	private static final long[] LAST4 = {
+		0x0000L, 0x1c20L, 0x3840L, 0x2460L, 0x7080L, 0x6ca0L, 0x48c0L, 0x54e0L,
+		0xe100L, 0xfd20L, 0xd940L, 0xc560L, 0x9180L, 0x8da0L, 0xa9c0L, 0xb5e0L
+	};
+
+	private final long[] hh = new long[16];
+	private final long[] hl = new long[16];
+
+	private long zh;
+	private long zl;
+
+	private final byte[] partial = new byte[16];
+	private int partialLength;
+
+	private long length;
+
+	Ghash(byte[] h) {
+		long vh = getLong(h, 0);
+		long vl = getLong(h, 8);
+
+		hh[8] = vh;
+		hl[8] = vl;
+
+		for(int i = 4; i > 0; i >>= 1) {
+			long t = (vl & 1) * 0xe1000000L;
+			vl = (vh << 63) | (vl >>> 1);
+			vh = (vh >>> 1) ^ (t << 32);
+			hh[i] = vh;
+			hl[i] = vl;
+		}
+
+		for(int i = 2; i <= 8; i *= 2) {
+			vh = hh[i];
+			vl = hl[i];
+			for(int j = 1; j < i; j++) {
+				hh[i + j] = vh ^ hh[j];
+				hl[i + j] = vl ^ hl[j];
+			}
+		}
+	}
+
+	void update(byte[] data, int offset, int len) {
+		length += len;
+
+		if(partialLength > 0) {
+			int n = Math.min(len, 16 - partialLength);
+			System.arraycopy(data, offset, partial, partialLength, n);
+			partialLength += n;
+			offset += n;
+			len -= n;
+
+			if(partialLength < 16) {
+				return;
+			}
+
+			block(partial, 0);
+			partialLength = 0;
+		}
+
+		while(len >= 16) {
+			block(data, offset);
+			offset += 16;
+			len -= 16;
+		}
+
+		if(len > 0) {
+			System.arraycopy(data, offset, partial, 0, len);
+			partialLength = len;
+		}
+	}
+
+	/**
+	 * Hashes the remaining bytes of the buffer, its position is advanced to the limit.
+	 */
+	void update(ByteBuffer data) {
+		int len = data.remaining();
+		length += len;
+
+		if(partialLength > 0) {
+			int n = Math.min(len, 16 - partialLength);
+			data.get(partial, partialLength, n);
+			partialLength += n;
+			len -= n;
+
+			if(partialLength < 16) {
+				return;
+			}
+
+			block(partial, 0);
+			partialLength = 0;
+		}
+
+		ByteOrder order = data.order();
+		data.order(ByteOrder.BIG_ENDIAN);
+		while(len >= 16) {
+			zh ^= data.getLong();
+			zl ^= data.getLong();
+			multiply();
+			len -= 16;
+		}
+		data.order(order);
+
+		if(len > 0) {
+			data.get(partial, 0, len);
+			partialLength = len;
+		}
+	}
+
+	/**
+	 * @return number of bytes hashed so far
+	 */
+	long length() {
+		return length;
+	}
+
+	/**
+	 * Continues this hash with the data hashed by {@code next}, as if it had been passed to {@link #update}
+	 * directly. This allows hashing consecutive segments independently. Only the last segment may end with
+	 * an incomplete block.
+	 */
+	void append(Ghash next) {
+		if(partialLength > 0) {
+			throw new IllegalStateException("Only the last segment may end with an incomplete block");
+		}
+
+		next.padPartial();
+		long blocks = (next.length + 15) / 16;
+
+		long[] p = power(blocks);
+		long[] z = multiply(zh, zl, p[0], p[1]);
+		zh = z[0] ^ next.zh;
+		zl = z[1] ^ next.zl;
+		length += next.length;
+	}
+
+	/**
+	 * @return H to the power of n in GF(2^128)
+	 */
+	private long[] power(long n) {
+		long[] result = { 0x8000000000000000L, 0 };
+		long[] base = { hh[8], hl[8] };
+
+		while(n > 0) {
+			if((n & 1) != 0) {
+				result = multiply(result[0], result[1], base[0], base[1]);
+			}
+			base = multiply(base[0], base[1], base[0], base[1]);
+			n >>>= 1;
+		}
+
+		return result;
+	}
+
+	/**
+	 * Bitwise multiplication in GF(2^128), slow but only used for combining segments.
+	 */
+	private static long[] multiply(long xh, long xl, long yh, long yl) {
+		long rh = 0;
+		long rl = 0;
+		long vh = yh;
+		long vl = yl;
+
+		for(int i = 0; i < 128; i++) {
+			long bit = i < 64 ? (xh >>> (63 - i)) & 1 : (xl >>> (127 - i)) & 1;
+			if(bit != 0) {
+				rh ^= vh;
+				rl ^= vl;
+			}
+
+			boolean lsb = (vl & 1) != 0;
+			vl = (vl >>> 1) | (vh << 63);
+			vh >>>= 1;
+			if(lsb) {
+				vh ^= 0xe100000000000000L;
+			}
+		}
+
+		return new long[] { rh, rl };
+	}
+
+	/**
+	 * Pads the last incomplete block, appends the length block and returns the hash.
+	 * No additional authenticated data is used by crypt15, so only the bit length of the hashed data is encoded.
+	 */
+	byte[] finish() {
+		padPartial();
+
+		long bits = length * 8;
+		zl ^= bits;
+		multiply();
+
+		byte[] out = new byte[16];
+		putLong(out, 0, zh);
+		putLong(out, 8, zl);
+		return out;
+	}
+
+	private void padPartial() {
+		if(partialLength > 0) {
+			for(int i = partialLength; i < 16; i++) {
+				partial[i] = 0;
+			}
+			block(partial, 0);
+			partialLength = 0;
+		}
+	}
+
+	private void block(byte[] data, int offset) {
+		zh ^= getLong(data, offset);
+		zl ^= getLong(data, offset + 8);
+		multiply();
+	}
+
+	private void multiply() {
+		long xh = zh;
+		long xl = zl;
+
+		int lo = (int) (xl & 0xf);
+		long rh = hh[lo];
+		long rl = hl[lo];
+
+		for(int i = 15; i >= 0; i--) {
+			int b = (int) ((i < 8 ? xh >>> (8 * (7 - i)) : xl >>> (8 * (15 - i))) & 0xff);
+			lo = b & 0xf;
+			int hi = b >>> 4;
+
+			if(i != 15) {
+				int rem = (int) (rl & 0xf);
+				rl = (rh << 60) | (rl >>> 4);
+				rh = (rh >>> 4) ^ (LAST4[rem] << 48);
+				rh ^= hh[lo];
+				rl ^= hl[lo];
+			}
+
+			int rem = (int) (rl & 0xf);
+			rl = (rh << 60) | (rl >>> 4);
+			rh = (rh >>> 4) ^ (LAST4[rem] << 48);
+			rh ^= hh[hi];
+			rl ^= hl[hi];
+		}
+
+		zh = rh;
+		zl = rl;
+	}
+
+	static long getLong(byte[] b, int offset) {
+		long v = 0;
+		for(int i = 0; i < 8; i++) {
+			v = (v << 8) | (b[offset + i] & 0xff);
+		}
+		return v;
+	}
+
+	static void putLong(byte[] b, int offset, long v) {
+		for(int i = 7; i >= 0; i--) {
+			b[offset + i] = (byte) v;
+			v >>>= 8;
+		}
+	}
+}
@@ -0,0 +1,63 @@
+package whatsappbackupreader;
+
+import java.nio.file.Path;
+
+/**
+ * Outcome of checking one file with {@link IntegrityScanner}.
+ */
+public class IntegrityResult {
+
+	public enum Status {
+		/** The md5 checksum at the end of the file matches its content. */
+		OK,
+		/** The md5 checksum does not match. */
+		CORRUPT,
+		/** The file is too short to contain a checksum. */
+		TOO_SHORT,
+		/** The file could not be read. */
+		UNREADABLE
+	}
+
+	private final Path path;
+	private final Status status;
+	private final long size;
+	private final String message;
+
+	IntegrityResult(Path path, Status status, long size, String message) {
+		this.path = path;
+		this.status = status;
+		this.size = size;
+		this.message = message;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	public Status getStatus() {
+		return status;
+	}
+
+	public boolean isOk() {
+		return status == Status.OK;
+	}
+
+	/**
+	 * @return number of bytes read from the file
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return details on the failure, null if the file is ok
+	 */
+	public String getMessage() {
+		return message;
+	}
+
+	@Override
+	public String toString() {
+		return message == null ? path + ": " + status : path + ": " + status + " (" + message + ")";
+	}
+}
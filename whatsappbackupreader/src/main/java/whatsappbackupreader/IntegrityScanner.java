@@ -0,0 +1,140 @@
+package whatsappbackupreader;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Checks the md5 checksum at the end of crypt files without a key. The checksum covers the whole file including
+ * the encrypted data, so bit rot in an archive of backups is detected without decrypting anything.
+ */
+public class IntegrityScanner {
+
+	private static Logger logger = LogManager.getLogger(IntegrityScanner.class);
+
+	private static final int LENGTH_CHECKSUM = 16;
+	private static final int BUFFER_SIZE = 1024 * 1024;
+
+	private final int threads;
+
+	public IntegrityScanner() {
+		this(TaskExecutors.defaultIoThreads());
+	}
+
+	public IntegrityScanner(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * Checks all crypt files (*.crypt12, *.crypt14, *.crypt15, ...) below the directory in parallel.
+	 */
+	public List<IntegrityResult> scan(Path directory) throws WhatsappBackupReaderException {
+		return check(CryptFiles.list(directory));
+	}
+
+	/**
+	 * Checks the given files in parallel.
+	 * @return one result per file, in the order of the files
+	 */
+	public List<IntegrityResult> check(List<Path> files) throws WhatsappBackupReaderException {
+		logger.info("Checking {} files on {} threads", files.size(), threads);
+
+		ExecutorService executor = TaskExecutors.newIoExecutor("integrity-scanner", threads);
+		try {
+			List<Callable<IntegrityResult>> tasks = new ArrayList<Callable<IntegrityResult>>();
+			for(Path file : files) {
+				tasks.add(() -> check(file));
+			}
+
+			List<IntegrityResult> results = new ArrayList<IntegrityResult>();
+			for(Future<IntegrityResult> future : executor.invokeAll(tasks)) {
+				results.add(future.get());
+			}
+			return results;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while checking files", e);
+		} catch (ExecutionException e) {
+			throw new WhatsappBackupReaderException("Cannot check files", e.getCause());
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Checks a single file, reading it as a stream with constant memory use.
+	 */
+	public IntegrityResult check(Path file) {
+		MessageDigest md5;
+		try {
+			md5 = MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			return new IntegrityResult(file, IntegrityResult.Status.UNREADABLE, 0, "Cannot initiate md5 sum generator");
+		}
+
+		long size = 0;
+		try(TrailerInputStream in = new TrailerInputStream(Files.newInputStream(file), LENGTH_CHECKSUM, BUFFER_SIZE)) {
+			byte[] buf = new byte[BUFFER_SIZE];
+			int n;
+			while((n = in.read(buf, 0, buf.length)) != -1) {
+				md5.update(buf, 0, n);
+				size += n;
+			}
+
+			byte[] checksumExpected;
+			try {
+				checksumExpected = in.getTrailer();
+			} catch (IOException e) {
+				return new IntegrityResult(file, IntegrityResult.Status.TOO_SHORT, size, e.getMessage());
+			}
+			size += LENGTH_CHECKSUM;
+
+			if(!Arrays.equals(checksumExpected, md5.digest())) {
+				return new IntegrityResult(file, IntegrityResult.Status.CORRUPT, size, "Checksums not equal");
+			}
+
+			return new IntegrityResult(file, IntegrityResult.Status.OK, size, null);
+		} catch (IOException e) {
+			return new IntegrityResult(file, IntegrityResult.Status.UNREADABLE, size, e.getMessage());
+		}
+	}
+
+	/**
+	 * Writes all files that failed the check to a tab separated report: path, status and details.
+	 * @return number of files in the report
+	 */
+	public static int writeReport(List<IntegrityResult> results, Path reportPath) throws IOException {
+		int failed = 0;
+		try(BufferedWriter writer = Files.newBufferedWriter(reportPath)) {
+			for(IntegrityResult result : results) {
+				if(result.isOk()) {
+					continue;
+				}
+
+				writer.write(result.getPath() + "\t" + result.getStatus() + "\t"
+						+ (result.getMessage() == null ? "" : result.getMessage()));
+				writer.newLine();
+				failed++;
+			}
+		}
+
+		logger.info("{} of {} files failed the check", failed, results.size());
+		return failed;
+	}
+}
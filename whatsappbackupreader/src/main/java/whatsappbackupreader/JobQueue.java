@@ -0,0 +1,399 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Dumps of many tenants with their state in a local SQLite database, so that a crashed run can be resumed. Jobs
+ * with a higher priority are started first, each tenant runs at most a limited number of jobs at the same time and
+ * failed jobs are retried with exponential backoff. Jobs that were running when the process stopped are started
+ * again, jobs that are done are skipped, also when they are submitted again. Only one process may use the
+ * database at the same time.
+ */
+public class JobQueue implements AutoCloseable {
+
+	private static Logger logger = LogManager.getLogger(JobQueue.class);
+
+	private static final String COLUMNS = "id, tenant, crypt_path, key_path, output_path, contacts_path, extra_views, "
+			+ "priority, state, attempts, error";
+	private static final int MAX_BACKOFF_SHIFT = 20;
+
+	private final Connection connection;
+
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int tenantLimit = 1;
+	private final Map<String, Integer> tenantLimits = new HashMap<String, Integer>();
+	private int maxAttempts = 3;
+	private long retryBackoff = 1000;
+	private DecryptionMode decryptionMode = DecryptionMode.STREAMING;
+
+	private int running;
+	private final Map<String, Integer> runningPerTenant = new HashMap<String, Integer>();
+
+	private JobQueue(Connection connection) {
+		this.connection = connection;
+	}
+
+	/**
+	 * Opens the queue, creating it if it does not exist. Jobs that were interrupted are pending again.
+	 */
+	public static JobQueue open(Path databasePath) throws SQLException {
+		Connection connection = DriverManager.getConnection(String.format("jdbc:sqlite:%s", databasePath));
+		try(Statement stmt = connection.createStatement()) {
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS jobs ("
+					+ "id INTEGER PRIMARY KEY AUTOINCREMENT, "
+					+ "tenant TEXT NOT NULL, "
+					+ "crypt_path TEXT NOT NULL, "
+					+ "key_path TEXT NOT NULL, "
+					+ "output_path TEXT NOT NULL, "
+					+ "contacts_path TEXT, "
+					+ "extra_views INTEGER NOT NULL, "
+					+ "priority INTEGER NOT NULL, "
+					+ "state TEXT NOT NULL, "
+					+ "attempts INTEGER NOT NULL, "
+					+ "next_attempt_at INTEGER NOT NULL, "
+					+ "error TEXT, "
+					+ "created_at INTEGER NOT NULL, "
+					+ "updated_at INTEGER NOT NULL, "
+					+ "UNIQUE (crypt_path, output_path))");
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS jobs_state ON jobs(state, priority)");
+
+			int resumed = stmt.executeUpdate("UPDATE jobs SET state = '" + QueuedJob.State.PENDING + "' "
+					+ "WHERE state IN ('" + QueuedJob.State.DECRYPTING + "', '" + QueuedJob.State.POST_PROCESSING + "')");
+			if(resumed > 0) {
+				logger.info("Resuming {} interrupted jobs", resumed);
+			}
+		} catch (SQLException e) {
+			connection.close();
+			throw e;
+		}
+		return new JobQueue(connection);
+	}
+
+	/**
+	 * Adds a dump without extra views.
+	 * @see #submit(String, Path, Path, Path, int, boolean, Path)
+	 */
+	public long submit(String tenant, Path cryptPath, Path keyPath, Path outputPath, int priority)
+			throws SQLException {
+		return submit(tenant, cryptPath, keyPath, outputPath, priority, false, null);
+	}
+
+	/**
+	 * Adds a dump. A job with the same crypt file and output is not added twice: if it failed, it is pending again,
+	 * otherwise it is left as it is.
+	 * @param contactsPath contacts for the extra views, may be null
+	 * @return id of the job
+	 */
+	public synchronized long submit(String tenant, Path cryptPath, Path keyPath, Path outputPath, int priority,
+			boolean createExtraSqlViews, Path contactsPath) throws SQLException {
+		long now = System.currentTimeMillis();
+		String crypt = cryptPath.toAbsolutePath().toString();
+		String output = outputPath.toAbsolutePath().toString();
+
+		try(PreparedStatement insert = connection.prepareStatement("INSERT OR IGNORE INTO jobs (tenant, crypt_path, "
+					+ "key_path, output_path, contacts_path, extra_views, priority, state, attempts, next_attempt_at, "
+					+ "created_at, updated_at) VALUES (?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?)");
+				PreparedStatement retry = connection.prepareStatement("UPDATE jobs SET state = ?, attempts = 0, "
+					+ "next_attempt_at = ?, error = NULL, updated_at = ? WHERE crypt_path = ? AND output_path = ? "
+					+ "AND state = ?");
+				PreparedStatement select = connection.prepareStatement(
+					"SELECT id FROM jobs WHERE crypt_path = ? AND output_path = ?")) {
+			insert.setString(1, tenant);
+			insert.setString(2, crypt);
+			insert.setString(3, keyPath.toAbsolutePath().toString());
+			insert.setString(4, output);
+			insert.setString(5, contactsPath == null ? null : contactsPath.toAbsolutePath().toString());
+			insert.setInt(6, createExtraSqlViews ? 1 : 0);
+			insert.setInt(7, priority);
+			insert.setString(8, QueuedJob.State.PENDING.name());
+			insert.setLong(9, now);
+			insert.setLong(10, now);
+			insert.setLong(11, now);
+			if(insert.executeUpdate() == 0) {
+				retry.setString(1, QueuedJob.State.PENDING.name());
+				retry.setLong(2, now);
+				retry.setLong(3, now);
+				retry.setString(4, crypt);
+				retry.setString(5, output);
+				retry.setString(6, QueuedJob.State.FAILED.name());
+				retry.executeUpdate();
+			}
+
+			select.setString(1, crypt);
+			select.setString(2, output);
+			try(ResultSet rs = select.executeQuery()) {
+				rs.next();
+				return rs.getLong(1);
+			}
+		}
+	}
+
+	/**
+	 * Runs jobs until none is pending. Waits for failed jobs whose retry is due later.
+	 * @return number of jobs done in this run
+	 */
+	public int run() throws WhatsappBackupReaderException, SQLException {
+		AtomicInteger threadNumber = new AtomicInteger();
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "job-queue-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		AtomicInteger done = new AtomicInteger();
+		try {
+			synchronized(this) {
+				while(true) {
+					QueuedJob job = running < threads ? claim() : null;
+					if(job != null) {
+						running++;
+						runningPerTenant.merge(job.getTenant(), 1, Integer::sum);
+						executor.execute(() -> {
+							if(process(job)) {
+								done.incrementAndGet();
+							}
+						});
+						continue;
+					}
+
+					Long nextAttempt = nextAttemptAt();
+					if(nextAttempt == null && running == 0) {
+						break;
+					}
+					// due jobs that cannot start wait for a running job to finish
+					long delay = nextAttempt == null ? 0 : nextAttempt - System.currentTimeMillis();
+					wait(Math.max(0, delay));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while running jobs", e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		logger.info("{} jobs done", done.get());
+		return done.get();
+	}
+
+	/**
+	 * @return all jobs, in the order they are started
+	 */
+	public synchronized List<QueuedJob> list() throws SQLException {
+		return query("1 = 1");
+	}
+
+	public synchronized List<QueuedJob> list(QueuedJob.State state) throws SQLException {
+		return query("state = ?", state.name());
+	}
+
+	@Override
+	public synchronized void close() throws SQLException {
+		connection.close();
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	/**
+	 * @return maximum number of jobs a tenant without its own limit runs at the same time
+	 */
+	public int getTenantLimit() {
+		return tenantLimit;
+	}
+
+	public void setTenantLimit(int tenantLimit) {
+		if(tenantLimit <= 0) {
+			throw new IllegalArgumentException("Tenant limit must be positive");
+		}
+		this.tenantLimit = tenantLimit;
+	}
+
+	public synchronized int getTenantLimit(String tenant) {
+		return tenantLimits.getOrDefault(tenant, tenantLimit);
+	}
+
+	public synchronized void setTenantLimit(String tenant, int limit) {
+		if(limit <= 0) {
+			throw new IllegalArgumentException("Tenant limit must be positive");
+		}
+		tenantLimits.put(tenant, limit);
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	public void setMaxAttempts(int maxAttempts) {
+		if(maxAttempts <= 0) {
+			throw new IllegalArgumentException("Number of attempts must be positive");
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	public long getRetryBackoff() {
+		return retryBackoff;
+	}
+
+	/**
+	 * @param retryBackoff milliseconds before the first retry, doubled for each further retry
+	 */
+	public void setRetryBackoff(long retryBackoff) {
+		if(retryBackoff < 0) {
+			throw new IllegalArgumentException("Backoff must not be negative");
+		}
+		this.retryBackoff = retryBackoff;
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return decryptionMode;
+	}
+
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		this.decryptionMode = decryptionMode;
+	}
+
+	/**
+	 * Marks the pending job with the highest priority whose tenant is below its limit as decrypting.
+	 * @return the job, null if none can be started now
+	 */
+	private QueuedJob claim() throws SQLException {
+		for(QueuedJob job : query("state = ? AND next_attempt_at <= ?",
+				QueuedJob.State.PENDING.name(), System.currentTimeMillis())) {
+			if(runningPerTenant.getOrDefault(job.getTenant(), 0) < getTenantLimit(job.getTenant())) {
+				update(job.getId(), QueuedJob.State.DECRYPTING, job.getAttempts(), 0, null);
+				return job;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return time of the earliest pending job, null if there is none
+	 */
+	private Long nextAttemptAt() throws SQLException {
+		try(PreparedStatement pstmt = connection.prepareStatement(
+				"SELECT MIN(next_attempt_at) FROM jobs WHERE state = ?")) {
+			pstmt.setString(1, QueuedJob.State.PENDING.name());
+			try(ResultSet rs = pstmt.executeQuery()) {
+				long next = rs.getLong(1);
+				return rs.wasNull() ? null : next;
+			}
+		}
+	}
+
+	private boolean process(QueuedJob job) {
+		try {
+			try(DatabaseDumper dumper = DatabaseDumper.of(job.getCryptPath(), job.getKeyPath(), job.getOutputPath())) {
+				dumper.setDecryptionMode(decryptionMode);
+				dumper.setCreateExtraSqlViews(job.isCreateExtraSqlViews());
+				if(job.getContactsPath() != null) {
+					dumper.readContacts(job.getContactsPath());
+				}
+				dumper.setListener(new DumpListener() {
+					@Override
+					public void postProcessing() {
+						setState(job, QueuedJob.State.POST_PROCESSING);
+					}
+				});
+				dumper.run();
+			}
+
+			setState(job, QueuedJob.State.DONE);
+			return true;
+		} catch (WhatsappBackupReaderException | SQLException | IOException | RuntimeException e) {
+			fail(job, e.getMessage() == null ? e.toString() : e.getMessage());
+			return false;
+		} finally {
+			synchronized(this) {
+				running--;
+				runningPerTenant.merge(job.getTenant(), -1, Integer::sum);
+				notifyAll();
+			}
+		}
+	}
+
+	private synchronized void setState(QueuedJob job, QueuedJob.State state) {
+		try {
+			update(job.getId(), state, job.getAttempts(), 0, null);
+		} catch (SQLException e) {
+			logger.error("Cannot update state of " + job, e);
+		}
+	}
+
+	private synchronized void fail(QueuedJob job, String error) {
+		int attempts = job.getAttempts() + 1;
+		try {
+			if(attempts >= maxAttempts) {
+				logger.warn("{} failed: {}", job, error);
+				update(job.getId(), QueuedJob.State.FAILED, attempts, 0, error);
+			} else {
+				long backoff = retryBackoff << Math.min(attempts - 1, MAX_BACKOFF_SHIFT);
+				logger.info("{} failed, retrying in {} ms: {}", job, backoff, error);
+				update(job.getId(), QueuedJob.State.PENDING, attempts, System.currentTimeMillis() + backoff, error);
+			}
+		} catch (SQLException e) {
+			logger.error("Cannot update state of " + job, e);
+		}
+	}
+
+	private void update(long id, QueuedJob.State state, int attempts, long nextAttemptAt, String error)
+			throws SQLException {
+		try(PreparedStatement pstmt = connection.prepareStatement("UPDATE jobs SET state = ?, attempts = ?, "
+				+ "next_attempt_at = ?, error = ?, updated_at = ? WHERE id = ?")) {
+			pstmt.setString(1, state.name());
+			pstmt.setInt(2, attempts);
+			pstmt.setLong(3, nextAttemptAt);
+			pstmt.setString(4, error);
+			pstmt.setLong(5, System.currentTimeMillis());
+			pstmt.setLong(6, id);
+			pstmt.executeUpdate();
+		}
+	}
+
+	private List<QueuedJob> query(String condition, Object... params) throws SQLException {
+		List<QueuedJob> jobs = new ArrayList<QueuedJob>();
+		try(PreparedStatement pstmt = connection.prepareStatement(
+				"SELECT " + COLUMNS + " FROM jobs WHERE " + condition + " ORDER BY priority DESC, id")) {
+			for(int i = 0; i < params.length; i++) {
+				pstmt.setObject(i + 1, params[i]);
+			}
+			try(ResultSet rs = pstmt.executeQuery()) {
+				while(rs.next()) {
+					String contacts = rs.getString(6);
+					jobs.add(new QueuedJob(rs.getLong(1), rs.getString(2), Paths.get(rs.getString(3)),
+							Paths.get(rs.getString(4)), Paths.get(rs.getString(5)),
+							contacts == null ? null : Paths.get(contacts), rs.getInt(7) != 0, rs.getInt(8),
+							QueuedJob.State.valueOf(rs.getString(9)), rs.getInt(10), rs.getString(11)));
+				}
+			}
+		}
+		return jobs;
+	}
+}
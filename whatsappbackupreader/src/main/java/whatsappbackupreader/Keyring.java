@@ -0,0 +1,145 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A set of candidate keys. {@link #identify(Path)} finds the key of a backup by decrypting only the first bytes
+ * after the header with each key and checking for the zlib header and the SQLite magic, so it takes the same
+ * time for every backup size. The result is not authenticated, the full decryption still checks the tag.
+ */
+public class Keyring {
+
+	private static Logger logger = LogManager.getLogger(Keyring.class);
+
+	private static final int PROBE_LENGTH = 1024;
+	private static final int LENGTH_TRAILER = 32;
+	private static final byte[] SQLITE_MAGIC = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+
+	private final List<BackupKey> keys = new ArrayList<BackupKey>();
+
+	public Keyring() {
+	}
+
+	public Keyring(List<BackupKey> keys) {
+		this.keys.addAll(keys);
+	}
+
+	/**
+	 * Reads a file with one key as hex string per line. Empty lines and lines starting with # are skipped.
+	 */
+	public static Keyring fromFile(Path keyringPath) throws WhatsappBackupReaderException {
+		List<String> lines;
+		try {
+			lines = Files.readAllLines(keyringPath, StandardCharsets.US_ASCII);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read keyring " + keyringPath, e);
+		}
+
+		Keyring keyring = new Keyring();
+		for(String line : lines) {
+			line = line.trim();
+			if(line.isEmpty() || line.startsWith("#")) {
+				continue;
+			}
+			keyring.add(BackupKey.of(line));
+		}
+
+		return keyring;
+	}
+
+	public void add(BackupKey key) {
+		keys.add(key);
+	}
+
+	public List<BackupKey> getKeys() {
+		return Collections.unmodifiableList(keys);
+	}
+
+	/**
+	 * @return the first key whose decrypted start of the backup looks like a compressed SQLite database,
+	 * null if none does
+	 * @throws WhatsappBackupReaderException if the file cannot be read or its header is invalid
+	 */
+	public BackupKey identify(Path cryptPath) throws WhatsappBackupReaderException {
+		BackupHeader header;
+		byte[] ciphertext;
+		try(FileChannel channel = FileChannel.open(cryptPath, StandardOpenOption.READ)) {
+			header = BackupHeader.probe(cryptPath);
+			if(header.getCipherType() != BackupHeader.CipherType.C15) {
+				throw new WhatsappBackupReaderException("C14 not implemented");
+			}
+
+			long available = channel.size() - header.getLength() - LENGTH_TRAILER;
+			ByteBuffer buf = ByteBuffer.allocate((int) Math.max(0, Math.min(PROBE_LENGTH, available)));
+			channel.position(header.getLength());
+			while(buf.hasRemaining()) {
+				if(channel.read(buf) == -1) {
+					break;
+				}
+			}
+			ciphertext = Arrays.copyOf(buf.array(), buf.position());
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read encrypted file " + cryptPath, e);
+		}
+
+		byte[] iv = header.getIv();
+		byte[] plain = new byte[ciphertext.length];
+		for(BackupKey key : keys) {
+			GcmDecryptor gcm = new GcmDecryptor(key.getAesKey(), iv);
+			gcm.update(ciphertext, 0, ciphertext.length, plain, 0);
+			if(isCompressedSqlite(plain)) {
+				return key;
+			}
+		}
+
+		logger.info("No key of the keyring matches " + cryptPath);
+		return null;
+	}
+
+	private static boolean isCompressedSqlite(byte[] plain) {
+		if(plain.length < 2) {
+			return false;
+		}
+
+		// zlib header: deflate method and a check value that makes the first two bytes divisible by 31
+		int cmf = Byte.toUnsignedInt(plain[0]);
+		int flg = Byte.toUnsignedInt(plain[1]);
+		if((cmf & 0x0f) != 8 || ((cmf << 8) | flg) % 31 != 0) {
+			return false;
+		}
+
+		Inflater zlib = new Inflater(false);
+		try {
+			zlib.setInput(plain);
+			byte[] magic = new byte[SQLITE_MAGIC.length];
+			int n = 0;
+			while(n < magic.length && !zlib.needsInput() && !zlib.finished()) {
+				int inflated = zlib.inflate(magic, n, magic.length - n);
+				if(inflated == 0) {
+					break;
+				}
+				n += inflated;
+			}
+			return n == magic.length && Arrays.equals(magic, SQLITE_MAGIC);
+		} catch (DataFormatException e) {
+			return false;
+		} finally {
+			zlib.end();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Directory of decrypted databases, named by the md5 checksum at the end of the crypt file and the fingerprint of
+ * the key. An unchanged backup has the same checksum, so it only needs to be decrypted once. Entries are copied
+ * to the output, or hard linked if enabled with {@link #setHardLinks(boolean)}. The least recently used entries are
+ * removed when the cache grows larger than its maximum size.
+ */
+public class OutputCache {
+
+	private static Logger logger = LogManager.getLogger(OutputCache.class);
+
+	private static final String ENTRY_SUFFIX = ".db";
+	private static final String TEMP_SUFFIX = ".tmp";
+
+	private static class Entry {
+		final Path path;
+		final long lastUsed;
+		final long size;
+
+		Entry(Path path, long lastUsed, long size) {
+			this.path = path;
+			this.lastUsed = lastUsed;
+			this.size = size;
+		}
+	}
+
+	private final Path directory;
+	private final long maxSize;
+	private boolean hardLinks;
+
+	/**
+	 * @param maxSize maximum number of bytes of all entries
+	 */
+	public OutputCache(Path directory, long maxSize) throws WhatsappBackupReaderException {
+		if(maxSize < 0) {
+			throw new IllegalArgumentException("Cache size must not be negative");
+		}
+
+		this.directory = directory;
+		this.maxSize = maxSize;
+
+		try {
+			Files.createDirectories(directory);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot create cache directory " + directory, e);
+		}
+	}
+
+	/**
+	 * @param variant distinguishes different outputs of the same backup, e.g. with extra views, may be null
+	 * @return the name of the cache entry of the crypt file decrypted with the key
+	 */
+	public static String key(Path cryptPath, BackupKey key, String variant) throws WhatsappBackupReaderException {
+		String checksum;
+		try {
+			checksum = CryptFiles.readChecksum(cryptPath, Files.size(cryptPath));
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read checksum of " + cryptPath, e);
+		}
+		if(checksum == null) {
+			throw new WhatsappBackupReaderException("File too short to contain a checksum");
+		}
+
+		String name = checksum + "-" + key.getFingerprint();
+		return variant == null ? name : name + "-" + variant;
+	}
+
+	/**
+	 * Copies the entry to the target, or links it if hard links are enabled, and marks it as recently used.
+	 * @return false if there is no such entry
+	 */
+	public boolean fetch(String key, Path target) throws WhatsappBackupReaderException {
+		Path entry = entry(key);
+		if(!Files.isRegularFile(entry)) {
+			return false;
+		}
+
+		try {
+			Files.deleteIfExists(target);
+			if(!hardLinks || !link(entry, target)) {
+				Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+			Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot fetch " + key + " from cache", e);
+		}
+
+		logger.info("Using cached output " + entry);
+		return true;
+	}
+
+	/**
+	 * @return false if the file system does not support hard links or the target is on another file system
+	 */
+	private static boolean link(Path entry, Path target) {
+		try {
+			Files.createLink(target, entry);
+			return true;
+		} catch (UnsupportedOperationException | IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Copies the file into the cache and evicts old entries if the cache is too large. Entries are renamed into
+	 * place, so other processes never see incomplete entries.
+	 */
+	public void store(String key, Path source) throws WhatsappBackupReaderException {
+		Path entry = entry(key);
+		Path temp = directory.resolve(key + "." + ProcessHandle.current().pid() + "-" + UUID.randomUUID() + TEMP_SUFFIX);
+		try {
+			Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+			try {
+				Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+			} catch (FileAlreadyExistsException e) {
+				Files.delete(temp);
+			}
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(temp);
+			} catch (IOException e1) {
+				logger.warn("Cannot delete " + temp);
+			}
+			throw new WhatsappBackupReaderException("Cannot store " + key + " in cache", e);
+		}
+
+		evict();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is not larger than its maximum size.
+	 * @return number of removed entries
+	 */
+	public int evict() throws WhatsappBackupReaderException {
+		List<Path> entries;
+		try(Stream<Path> stream = Files.list(directory)) {
+			entries = stream
+					.filter(p -> p.getFileName().toString().endsWith(ENTRY_SUFFIX))
+					.collect(Collectors.toList());
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot list cache directory " + directory, e);
+		}
+
+		List<Entry> usage = new ArrayList<Entry>();
+		long total = 0;
+		for(Path path : entries) {
+			try {
+				Entry entry = new Entry(path, Files.getLastModifiedTime(path).toMillis(), Files.size(path));
+				usage.add(entry);
+				total += entry.size;
+			} catch (IOException e) {
+				// removed by another process in the meantime
+			}
+		}
+		usage.sort(Comparator.comparingLong(entry -> entry.lastUsed));
+
+		int removed = 0;
+		for(Entry entry : usage) {
+			if(total <= maxSize) {
+				break;
+			}
+			try {
+				Files.deleteIfExists(entry.path);
+				total -= entry.size;
+				removed++;
+				logger.info("Evicted " + entry.path + " from cache");
+			} catch (IOException e) {
+				logger.warn("Cannot evict " + entry.path);
+			}
+		}
+
+		return removed;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	public boolean isHardLinks() {
+		return hardLinks;
+	}
+
+	/**
+	 * Hard links entries to the output instead of copying them, which saves time and space for large databases.
+	 * Output and entry are then the same file: the output must be treated as read only, as writing to it, e.g.
+	 * opening it read-write in SQLite, changes the entry for all later runs. Its modification time changes whenever
+	 * the entry is used. Defaults to false.
+	 */
+	public void setHardLinks(boolean hardLinks) {
+		this.hardLinks = hardLinks;
+	}
+
+	private Path entry(String key) {
+		return directory.resolve(key + ENTRY_SUFFIX);
+	}
+}
@@ -0,0 +1,99 @@
+package whatsappbackupreader;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import javax.crypto.AEADBadTagException;
+
+/**
+ * Decrypts AES-GCM ciphertext on a fork-join pool. The ciphertext is split into block-aligned segments,
+ * each segment is decrypted in CTR mode and hashed with GHASH independently, and the segment hashes
+ * are combined afterwards to check the authentication tag.
+ */
+class ParallelGcmDecryptor {
+
+	private static final int MIN_SEGMENT_SIZE = 256 * 1024;
+
+	private final GcmDecryptor gcm;
+	private final ForkJoinPool pool;
+
+	ParallelGcmDecryptor(byte[] key, byte[] iv, ForkJoinPool pool) throws WhatsappBackupReaderException {
+		this.gcm = new GcmDecryptor(key, iv);
+		this.pool = pool;
+	}
+
+	/**
+	 * Decrypts {@code len} bytes of ciphertext into a new array. The plaintext is only returned if the tag matches.
+	 */
+	byte[] decrypt(byte[] data, int offset, int len, byte[] tag) throws WhatsappBackupReaderException {
+		byte[] plain = new byte[len];
+
+		int segments = pool.getParallelism() * 4;
+		int segmentSize = Math.max(MIN_SEGMENT_SIZE, (len / segments + 15) & ~15);
+
+		GcmDecryptor hashed;
+		try {
+			hashed = pool.invoke(new SegmentTask(data, offset, plain, 0, len, segmentSize));
+		} catch (RuntimeException e) {
+			// fork-join may wrap the exception thrown by the task once more
+			for(Throwable t = e; t != null; t = t.getCause()) {
+				if(t instanceof WhatsappBackupReaderException) {
+					throw (WhatsappBackupReaderException) t;
+				}
+			}
+			throw e;
+		}
+
+		gcm.append(hashed);
+		if(!gcm.verify(tag)) {
+			throw new WhatsappBackupReaderException("Could not decrypt", new AEADBadTagException("Tag mismatch"));
+		}
+
+		return plain;
+	}
+
+	private class SegmentTask extends RecursiveTask<GcmDecryptor> {
+		private static final long serialVersionUID = 1L;
+
+		private final byte[] data;
+		private final int dataOffset;
+		private final byte[] plain;
+		private final int start;
+		private final int len;
+		private final int segmentSize;
+
+		SegmentTask(byte[] data, int dataOffset, byte[] plain, int start, int len, int segmentSize) {
+			this.data = data;
+			this.dataOffset = dataOffset;
+			this.plain = plain;
+			this.start = start;
+			this.len = len;
+			this.segmentSize = segmentSize;
+		}
+
+		@Override
+		protected GcmDecryptor compute() {
+			try {
+				if(len <= segmentSize) {
+					GcmDecryptor segment = gcm.segment(start);
+					segment.update(data, dataOffset + start, len, plain, start);
+					return segment;
+				}
+
+				// split on a segment boundary so that only the last segment ends with an incomplete block
+				int half = (len / segmentSize / 2) * segmentSize;
+				if(half == 0) {
+					half = segmentSize;
+				}
+
+				SegmentTask right = new SegmentTask(data, dataOffset, plain, start + half, len - half, segmentSize);
+				right.fork();
+				GcmDecryptor left = new SegmentTask(data, dataOffset, plain, start, half, segmentSize).compute();
+				left.append(right.join());
+				return left;
+			} catch (WhatsappBackupReaderException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
@@ -0,0 +1,95 @@
+package whatsappbackupreader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stall times of the stages of a {@link DecryptionMode#PIPELINED} run. A stage stalls on input while it waits for
+ * work, and on output while the next stage's queue is full or no free buffer is available, as both mean a later
+ * stage is behind. The stage that stalls the least limits the throughput.
+ */
+public class PipelineStatistics {
+
+	public enum Stage {
+		READ,
+		DECRYPT,
+		INFLATE,
+		WRITE
+	}
+
+	private final long[] inputStallNanos = new long[Stage.values().length];
+	private final long[] outputStallNanos = new long[Stage.values().length];
+	private long elapsedNanos;
+	private long bytesRead;
+	private long bytesWritten;
+
+	void addInputStall(Stage stage, long nanos) {
+		inputStallNanos[stage.ordinal()] += nanos;
+	}
+
+	void addOutputStall(Stage stage, long nanos) {
+		outputStallNanos[stage.ordinal()] += nanos;
+	}
+
+	void setElapsedNanos(long elapsedNanos) {
+		this.elapsedNanos = elapsedNanos;
+	}
+
+	void addBytesRead(long n) {
+		bytesRead += n;
+	}
+
+	void addBytesWritten(long n) {
+		bytesWritten += n;
+	}
+
+	public long getInputStallNanos(Stage stage) {
+		return inputStallNanos[stage.ordinal()];
+	}
+
+	public long getOutputStallNanos(Stage stage) {
+		return outputStallNanos[stage.ordinal()];
+	}
+
+	public long getStallNanos(Stage stage) {
+		return getInputStallNanos(stage) + getOutputStallNanos(stage);
+	}
+
+	public long getElapsedNanos() {
+		return elapsedNanos;
+	}
+
+	public long getBytesRead() {
+		return bytesRead;
+	}
+
+	public long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * @return the stage that stalled the least, i.e. was busy for most of the run
+	 */
+	public Stage getBottleneck() {
+		Stage bottleneck = Stage.READ;
+		for(Stage stage : Stage.values()) {
+			if(getStallNanos(stage) < getStallNanos(bottleneck)) {
+				bottleneck = stage;
+			}
+		}
+		return bottleneck;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		sb.append(String.format("elapsed %d ms, read %d bytes, written %d bytes",
+				TimeUnit.NANOSECONDS.toMillis(elapsedNanos), bytesRead, bytesWritten));
+		for(Stage stage : Stage.values()) {
+			sb.append(String.format(", %s stalled %d ms on input / %d ms on output", stage.name().toLowerCase(),
+					TimeUnit.NANOSECONDS.toMillis(getInputStallNanos(stage)),
+					TimeUnit.NANOSECONDS.toMillis(getOutputStallNanos(stage))));
+		}
+		sb.append(", bottleneck ").append(getBottleneck().name().toLowerCase());
+		return sb.toString();
+	}
+}
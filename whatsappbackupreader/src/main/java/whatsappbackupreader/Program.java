@@ -1,30 +1,222 @@
 package whatsappbackupreader;
 
+import java.io.BufferedInputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.sql.SQLException;
 
 public class Program {
-	
+
 	public static void main(String[] args) throws WhatsappBackupReaderException, SQLException, IOException {
+		if(args.length > 0 && args[0].equals("--batch")) {
+			batch(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--worker")) {
+			worker(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--watch")) {
+			watch(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--daemon")) {
+			daemon(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--client")) {
+			client(args);
+			return;
+		}
+		if(args.length > 0 && args[0].equals("--archive")) {
+			archive(args);
+			return;
+		}
+
 		if(args.length<3) {
-			System.err.println("usage: Program <cryptpath> <keypath> <outputpath> [<contactspath>]");
-			System.exit(1);
+			usage();
 		}
 		Path cryptPath = Paths.get(args[0]);
 		Path keyPath = Paths.get(args[1]);
+		if(args[2].equals("-")) {
+			stdout(cryptPath, keyPath);
+			return;
+		}
 		Path outputPath = Paths.get(args[2]);
 		Path contactsPath = args.length > 3 ? Paths.get(args[3]) : null;
-		
-		DatabaseDumper dumper = DatabaseDumper.of(cryptPath, keyPath, outputPath);
-		dumper.setCreateExtraSqlViews(true);
-		
-		if(contactsPath != null) {
-			dumper.readContacts(contactsPath);
-		}
-		
-		dumper.run();
+
+		try(DatabaseDumper dumper = DatabaseDumper.of(cryptPath, keyPath, outputPath)) {
+			dumper.setCreateExtraSqlViews(true);
+
+			if(contactsPath != null) {
+				dumper.readContacts(contactsPath);
+			}
+
+			dumper.run();
+		}
+	}
+
+	/**
+	 * Writes the database without extra views to stdout, e.g. to pipe it into another program. The extra views need
+	 * a file. The whole backup is authenticated before anything is written, unless it is larger than 2 GiB.
+	 */
+	private static void stdout(Path cryptPath, Path keyPath) throws WhatsappBackupReaderException {
+		try(WhatsappBackupReader reader = new WhatsappBackupReader(cryptPath, keyPath, null)) {
+			// System.out would hide write errors, e.g. a closed pipe
+			reader.decrypt(new FileOutputStream(FileDescriptor.out));
+		}
+	}
+
+	/**
+	 * Decrypts an entry of a zip or tar archive without extracting it. The archive "-" is read from stdin.
+	 */
+	private static void archive(String[] args) throws WhatsappBackupReaderException, SQLException, IOException {
+		if(args.length<5) {
+			usage();
+		}
+		String entryName = args[2];
+		BackupKey key = BackupKey.fromKeyFile(Paths.get(args[3]));
+
+		BackupSource source;
+		if(args[1].equals("-")) {
+			BufferedInputStream in = new BufferedInputStream(System.in);
+			in.mark(4);
+			boolean zip = in.read() == 'P' && in.read() == 'K';
+			in.reset();
+			source = zip ? BackupSource.zipEntry(in, entryName) : BackupSource.tarEntry(in, entryName);
+		} else if(args[1].toLowerCase().endsWith(".zip")) {
+			source = BackupSource.zipEntry(Paths.get(args[1]), entryName);
+		} else {
+			source = BackupSource.tarEntry(Paths.get(args[1]), entryName);
+		}
+
+		if(args[4].equals("-")) {
+			try(WhatsappBackupReader reader = new WhatsappBackupReader(source, key, null)) {
+				reader.decrypt(new FileOutputStream(FileDescriptor.out));
+			}
+			return;
+		}
+
+		try(DatabaseDumper dumper = DatabaseDumper.of(source, key, Paths.get(args[4]))) {
+			dumper.setCreateExtraSqlViews(true);
+			if(args.length > 5) {
+				dumper.readContacts(Paths.get(args[5]));
+			}
+			dumper.run();
+		}
+	}
+
+	private static void batch(String[] args) throws WhatsappBackupReaderException, IOException {
+		if(args.length<4) {
+			usage();
+		}
+		String pattern = args[1];
+		Path keyPath = Paths.get(args[2]);
+		Path outputDir = Paths.get(args[3]);
+
+		BatchDecryptor decryptor = new BatchDecryptor(BackupKey.fromKeyFile(keyPath), outputDir);
+		if(args.length > 4) {
+			decryptor.setThreads(Integer.parseInt(args[4]));
+		}
+
+		BatchReport report = decryptor.run(pattern);
+		Files.createDirectories(outputDir);
+		report.writeReport(outputDir.resolve("batch-report.tsv"));
+		System.out.println(report);
+
+		if(report.getFailed() > 0) {
+			System.exit(2);
+		}
+	}
+
+	private static void worker(String[] args) throws WhatsappBackupReaderException, IOException {
+		if(args.length<5) {
+			usage();
+		}
+		String pattern = args[1];
+		Path keyPath = Paths.get(args[2]);
+		Path outputDir = Paths.get(args[3]);
+		Path workDir = Paths.get(args[4]);
+
+		ShardWorker worker = new ShardWorker(BackupKey.fromKeyFile(keyPath), outputDir, workDir);
+		if(args.length > 5) {
+			worker.setThreads(Integer.parseInt(args[5]));
+		}
+
+		BatchReport report = worker.run(pattern);
+		System.out.println(report);
+
+		if(report.getFailed() > 0) {
+			System.exit(2);
+		}
+	}
+
+	private static void watch(String[] args) throws WhatsappBackupReaderException {
+		if(args.length<4) {
+			usage();
+		}
+		Path inputDir = Paths.get(args[1]);
+		Path keyPath = Paths.get(args[2]);
+		Path outputDir = Paths.get(args[3]);
+
+		FolderWatcher watcher = new FolderWatcher(BackupKey.fromKeyFile(keyPath), inputDir, outputDir);
+		if(args.length > 4) {
+			watcher.setThreads(Integer.parseInt(args[4]));
+		}
+		watcher.setResultHandler(System.out::println);
+		Runtime.getRuntime().addShutdownHook(new Thread(watcher::close));
+
+		watcher.run();
+	}
+
+	private static void daemon(String[] args) throws WhatsappBackupReaderException {
+		if(args.length<2) {
+			usage();
+		}
+
+		Daemon daemon = new Daemon(Paths.get(args[1]));
+		if(args.length > 2) {
+			daemon.setThreads(Integer.parseInt(args[2]));
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread(daemon::close));
+
+		daemon.run();
+	}
+
+	private static void client(String[] args) {
+		if(args.length<3) {
+			usage();
+		}
+
+		// the daemon has its own working directory
+		String[] command = new String[args.length - 2];
+		command[0] = args[2];
+		for(int i = 3; i < args.length; i++) {
+			command[i - 2] = Paths.get(args[i]).toAbsolutePath().toString();
+		}
+
+		try {
+			System.out.println(new DaemonClient(Paths.get(args[1])).send(command));
+		} catch (WhatsappBackupReaderException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+
+	private static void usage() {
+		System.err.println("usage: Program <cryptpath> <keypath> <outputpath> [<contactspath>]");
+		System.err.println("       Program <cryptpath> <keypath> -");
+		System.err.println("       Program --archive <zip|tar|tar.gz|-> <entry> <keypath> <outputpath|-> [<contactspath>]");
+		System.err.println("       Program --batch <cryptdir|glob> <keypath> <outputdir> [<threads>]");
+		System.err.println("       Program --worker <cryptdir|glob> <keypath> <outputdir> <workdir> [<threads>]");
+		System.err.println("       Program --watch <cryptdir> <keypath> <outputdir> [<threads>]");
+		System.err.println("       Program --daemon <socketpath> [<threads>]");
+		System.err.println("       Program --client <socketpath> decrypt|export|verify|ping|stop [<paths>...]");
+		System.exit(1);
 	}
 
 }
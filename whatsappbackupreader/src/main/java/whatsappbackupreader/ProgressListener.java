@@ -0,0 +1,15 @@
+package whatsappbackupreader;
+
+/**
+ * Is told how much of a decrypted database has been written. Called on the thread writing the output, after each
+ * chunk and when the output is closed.
+ */
+@FunctionalInterface
+public interface ProgressListener {
+
+	/**
+	 * @param written number of bytes written so far
+	 * @param total size of the database declared in its SQLite header, -1 if unknown
+	 */
+	void progress(long written, long total);
+}
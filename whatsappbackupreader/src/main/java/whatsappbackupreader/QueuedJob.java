@@ -0,0 +1,110 @@
+package whatsappbackupreader;
+
+import java.nio.file.Path;
+
+/**
+ * A dump in a {@link JobQueue}.
+ */
+public class QueuedJob {
+
+	public enum State {
+		/** Waiting to be started, or to be retried after a failure. */
+		PENDING,
+		/** The crypt file is decrypted. */
+		DECRYPTING,
+		/** The extra views are created. */
+		POST_PROCESSING,
+		/** The output is complete. */
+		DONE,
+		/** All attempts failed. */
+		FAILED
+	}
+
+	private final long id;
+	private final String tenant;
+	private final Path cryptPath;
+	private final Path keyPath;
+	private final Path outputPath;
+	private final Path contactsPath;
+	private final boolean createExtraSqlViews;
+	private final int priority;
+	private final State state;
+	private final int attempts;
+	private final String error;
+
+	QueuedJob(long id, String tenant, Path cryptPath, Path keyPath, Path outputPath, Path contactsPath,
+			boolean createExtraSqlViews, int priority, State state, int attempts, String error) {
+		this.id = id;
+		this.tenant = tenant;
+		this.cryptPath = cryptPath;
+		this.keyPath = keyPath;
+		this.outputPath = outputPath;
+		this.contactsPath = contactsPath;
+		this.createExtraSqlViews = createExtraSqlViews;
+		this.priority = priority;
+		this.state = state;
+		this.attempts = attempts;
+		this.error = error;
+	}
+
+	public long getId() {
+		return id;
+	}
+
+	public String getTenant() {
+		return tenant;
+	}
+
+	public Path getCryptPath() {
+		return cryptPath;
+	}
+
+	public Path getKeyPath() {
+		return keyPath;
+	}
+
+	public Path getOutputPath() {
+		return outputPath;
+	}
+
+	/**
+	 * @return contacts for the extra views, null if there are none
+	 */
+	public Path getContactsPath() {
+		return contactsPath;
+	}
+
+	public boolean isCreateExtraSqlViews() {
+		return createExtraSqlViews;
+	}
+
+	/**
+	 * @return jobs with higher priority are started first
+	 */
+	public int getPriority() {
+		return priority;
+	}
+
+	public State getState() {
+		return state;
+	}
+
+	/**
+	 * @return number of failed attempts
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+
+	/**
+	 * @return error of the last failed attempt, null if there is none
+	 */
+	public String getError() {
+		return error;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("job %d of %s: %s -> %s, %s", id, tenant, cryptPath, outputPath, state);
+	}
+}
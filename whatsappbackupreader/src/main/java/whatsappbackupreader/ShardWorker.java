@@ -0,0 +1,333 @@
+package whatsappbackupreader;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Decrypts crypt files together with other worker processes, possibly on other hosts, that share a work directory,
+ * e.g. on NFS. A worker claims a file by creating its lease file exclusively and renews the lease while decrypting.
+ * The lease of a worker that died expires and is taken over by renaming it, which only one worker can do. Finished
+ * files get a done marker, failed files a failed marker, and are skipped by all workers. The output is written to a
+ * temporary file and renamed when complete, so a file decrypted twice after a takeover never yields a partial
+ * output. Lease expiry is based on modification times, so the clocks of the hosts must not differ by much more
+ * than a fraction of the lease duration.
+ */
+public class ShardWorker {
+
+	private static Logger logger = LogManager.getLogger(ShardWorker.class);
+
+	private static final String LEASE_SUFFIX = ".lease";
+	private static final String DONE_SUFFIX = ".done";
+	private static final String FAILED_SUFFIX = ".failed";
+	private static final long POLL_INTERVAL = 1000;
+
+	private final BatchDecryptor decryptor;
+	private final Path outputDirectory;
+	private final Path workDirectory;
+	private final String workerId;
+
+	private int threads = 1;
+	private long leaseDuration = TimeUnit.MINUTES.toMillis(2);
+
+	/** Lease files held by this worker. */
+	private final Set<Path> leases = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * @param workDirectory shared by all workers, holds the lease files and markers
+	 */
+	public ShardWorker(BackupKey key, Path outputDirectory, Path workDirectory) {
+		this.decryptor = new BatchDecryptor(key, outputDirectory);
+		this.outputDirectory = outputDirectory;
+		this.workDirectory = workDirectory;
+		this.workerId = hostName() + "-" + ProcessHandle.current().pid() + "-" + UUID.randomUUID();
+	}
+
+	/**
+	 * Processes files until every file of the pattern is done or failed, including files of workers that died.
+	 * @param pattern a directory or a glob pattern, see {@link BatchDecryptor#run(String)}
+	 * @return the files processed by this worker
+	 */
+	public BatchReport run(String pattern) throws WhatsappBackupReaderException {
+		Path baseDirectory = CryptFiles.baseDirectory(pattern);
+		List<Path> files = CryptFiles.find(pattern);
+		logger.info("Worker {} processing {} files on {} threads", workerId, files.size(), threads);
+
+		try {
+			Files.createDirectories(workDirectory);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot create work directory " + workDirectory, e);
+		}
+
+		AtomicInteger threadNumber = new AtomicInteger();
+		ScheduledExecutorService renewal = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "shard-worker-renewal");
+			t.setDaemon(true);
+			return t;
+		});
+		ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "shard-worker-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+
+		long start = System.nanoTime();
+		List<BatchResult> results = Collections.synchronizedList(new ArrayList<BatchResult>());
+		try {
+			long period = Math.max(1, leaseDuration / 3);
+			renewal.scheduleAtFixedRate(this::renewLeases, period, period, TimeUnit.MILLISECONDS);
+
+			List<Future<Void>> loops = new ArrayList<Future<Void>>();
+			for(int i = 0; i < threads; i++) {
+				// each thread starts at a different file to keep contention on the leases low
+				List<Path> order = new ArrayList<Path>(files);
+				Collections.shuffle(order);
+				loops.add(executor.submit(() -> {
+					work(baseDirectory, order, results);
+					return null;
+				}));
+			}
+			for(Future<Void> loop : loops) {
+				loop.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while processing files", e);
+		} catch (ExecutionException e) {
+			throw new WhatsappBackupReaderException("Cannot process files", e.getCause());
+		} finally {
+			executor.shutdownNow();
+			renewal.shutdownNow();
+		}
+
+		BatchReport report = new BatchReport(new ArrayList<BatchResult>(results), System.nanoTime() - start);
+		logger.info("Worker {}: {}", workerId, report);
+		return report;
+	}
+
+	private void work(Path baseDirectory, List<Path> files, List<BatchResult> results)
+			throws IOException, InterruptedException {
+		while(true) {
+			boolean unfinished = false;
+			for(Path file : files) {
+				String name = markerName(baseDirectory.relativize(file));
+				if(isFinished(name)) {
+					continue;
+				}
+				unfinished = true;
+
+				Path lease = workDirectory.resolve(name + LEASE_SUFFIX);
+				if(!claim(lease, file)) {
+					continue;
+				}
+
+				try {
+					if(!isFinished(name)) {
+						results.add(process(baseDirectory, file, name, lease));
+					}
+				} finally {
+					// a lost lease belongs to another worker now
+					if(leases.remove(lease)) {
+						Files.deleteIfExists(lease);
+					}
+				}
+			}
+
+			if(!unfinished) {
+				return;
+			}
+
+			// the remaining files are leased by other workers, wait for them to finish or to expire
+			Thread.sleep(Math.max(1, Math.min(POLL_INTERVAL, leaseDuration / 2)));
+		}
+	}
+
+	private BatchResult process(Path baseDirectory, Path file, String name, Path lease) throws IOException {
+		Path output = outputDirectory.resolve(baseDirectory.relativize(file));
+		output = output.resolveSibling(CryptFiles.stripCryptExtension(output.getFileName().toString()));
+		Path temp = output.resolveSibling(output.getFileName() + "." + workerId + ".tmp");
+
+		BatchResult result = decryptor.decrypt(file, temp);
+		if(!leases.contains(lease)) {
+			Files.deleteIfExists(temp);
+			return new BatchResult(file, output, BatchResult.Status.FAILED, result.getSize(), 0,
+					result.getElapsedNanos(), "Lease lost to another worker");
+		}
+
+		if(result.isOk()) {
+			Files.move(temp, output, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			writeMarker(name + DONE_SUFFIX, workerId);
+		} else {
+			Files.deleteIfExists(temp);
+			writeMarker(name + FAILED_SUFFIX, workerId + "\t" + result.getMessage());
+		}
+
+		return new BatchResult(file, output, result.getStatus(), result.getSize(), result.getOutputSize(),
+				result.getElapsedNanos(), result.getMessage());
+	}
+
+	/**
+	 * Creates the lease file exclusively. An expired lease is first moved away, which succeeds for one worker only.
+	 * @return true if this worker holds the lease
+	 */
+	private boolean claim(Path lease, Path file) throws IOException {
+		try {
+			Files.write(lease, (workerId + "\n" + file + "\n").getBytes(StandardCharsets.UTF_8),
+					StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+			leases.add(lease);
+			return true;
+		} catch (FileAlreadyExistsException e) {
+			// leased by another worker
+		}
+
+		long modified;
+		try {
+			modified = Files.getLastModifiedTime(lease).toMillis();
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+		if(System.currentTimeMillis() - modified <= leaseDuration) {
+			return false;
+		}
+
+		Path expired = lease.resolveSibling(lease.getFileName() + "." + workerId + ".expired");
+		try {
+			Files.move(lease, expired, StandardCopyOption.ATOMIC_MOVE);
+		} catch (NoSuchFileException e) {
+			// taken over by another worker
+			return false;
+		}
+
+		// another worker may have renewed or replaced the lease since its time was read
+		if(System.currentTimeMillis() - Files.getLastModifiedTime(expired).toMillis() <= leaseDuration) {
+			try {
+				Files.move(expired, lease, StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e1) {
+				Files.deleteIfExists(expired);
+			}
+			return false;
+		}
+
+		logger.warn("Taking over expired lease of {}: {}", file, new String(Files.readAllBytes(expired),
+				StandardCharsets.UTF_8).split("\n")[0]);
+		Files.delete(expired);
+		return claim(lease, file);
+	}
+
+	/**
+	 * Renews all leases of this worker. A lease that was taken over by another worker is given up.
+	 */
+	private void renewLeases() {
+		for(Path lease : leases) {
+			try {
+				String owner = new String(Files.readAllBytes(lease), StandardCharsets.UTF_8).split("\n")[0];
+				if(!owner.equals(workerId)) {
+					throw new NoSuchFileException(lease.toString());
+				}
+				Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis()));
+			} catch (NoSuchFileException e) {
+				logger.warn("Lost lease {}", lease);
+				leases.remove(lease);
+			} catch (IOException e) {
+				logger.warn("Cannot renew lease {}: {}", lease, e.getMessage());
+			}
+		}
+	}
+
+	private boolean isFinished(String name) {
+		return Files.exists(workDirectory.resolve(name + DONE_SUFFIX))
+				|| Files.exists(workDirectory.resolve(name + FAILED_SUFFIX));
+	}
+
+	private void writeMarker(String marker, String content) throws IOException {
+		Path temp = workDirectory.resolve(marker + "." + workerId + ".tmp");
+		Files.write(temp, (content + "\n").getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, workDirectory.resolve(marker), StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * @return a file name that identifies the crypt file independent of where the share is mounted
+	 */
+	private static String markerName(Path relativePath) {
+		try {
+			MessageDigest md5 = MessageDigest.getInstance("MD5");
+			String path = relativePath.toString().replace('\\', '/');
+			return CryptFiles.toHex(md5.digest(path.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException("MD5 not available", e);
+		}
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
+	}
+
+	public String getWorkerId() {
+		return workerId;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	public void setThreads(int threads) {
+		if(threads <= 0) {
+			throw new IllegalArgumentException("Number of threads must be positive");
+		}
+		this.threads = threads;
+	}
+
+	public long getLeaseDuration() {
+		return leaseDuration;
+	}
+
+	/**
+	 * @param leaseDuration milliseconds after the last renewal until other workers may take over a file. Leases are
+	 * renewed three times per duration.
+	 */
+	public void setLeaseDuration(long leaseDuration) {
+		if(leaseDuration <= 0) {
+			throw new IllegalArgumentException("Lease duration must be positive");
+		}
+		this.leaseDuration = leaseDuration;
+	}
+
+	public DecryptionMode getDecryptionMode() {
+		return decryptor.getDecryptionMode();
+	}
+
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		decryptor.setDecryptionMode(decryptionMode);
+	}
+}
@@ -0,0 +1,261 @@
+package whatsappbackupreader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads the entries of a tar archive one after another, like {@link java.util.zip.ZipInputStream} does for zip
+ * archives. Understands ustar archives with the GNU long name and the pax extensions, which tar uses for names
+ * longer than 100 bytes and entries larger than 8 GiB. Only regular files are returned.
+ */
+final class TarReader {
+
+	private static final int BLOCK_SIZE = 512;
+	private static final int OFFSET_SIZE = 124;
+	private static final int OFFSET_CHECKSUM = 148;
+	private static final int OFFSET_TYPE = 156;
+	private static final int OFFSET_MAGIC = 257;
+	private static final int OFFSET_PREFIX = 345;
+	private static final int MAX_EXTENSION_SIZE = 1024 * 1024;
+
+	private final InputStream in;
+	private final byte[] header = new byte[BLOCK_SIZE];
+	private long position;
+	private long skip;
+
+	private String name;
+	private long size;
+	private long offset;
+
+	TarReader(InputStream in) {
+		this.in = in;
+	}
+
+	/**
+	 * @return the stream, decompressed if it starts like a gzip file, e.g. a .tar.gz archive
+	 */
+	static InputStream decompress(InputStream in) throws IOException {
+		BufferedInputStream buffered = new BufferedInputStream(in, 64 * 1024);
+		buffered.mark(2);
+		int b0 = buffered.read();
+		int b1 = buffered.read();
+		buffered.reset();
+		if(b0 == 0x1f && b1 == 0x8b) {
+			return new GZIPInputStream(buffered, 64 * 1024);
+		}
+		return buffered;
+	}
+
+	/**
+	 * Moves to the next regular file, skipping what is left of the current one.
+	 * @return false at the end of the archive
+	 */
+	boolean next() throws IOException {
+		String longName = null;
+		String paxName = null;
+		long paxSize = -1;
+
+		while(true) {
+			BoundedInputStream.skipFully(in, skip);
+			position += skip;
+			skip = 0;
+
+			int n = in.readNBytes(header, 0, BLOCK_SIZE);
+			position += n;
+			if(n < BLOCK_SIZE || isZero(header)) {
+				return false;
+			}
+			if(readNumber(OFFSET_CHECKSUM, 8) != checksum(header)) {
+				throw new IOException("Not a tar archive or archive corrupted at byte " + (position - n));
+			}
+
+			long entrySize = readNumber(OFFSET_SIZE, 12);
+			long padded = (entrySize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			char type = (char) header[OFFSET_TYPE];
+
+			if(type == 'L' || type == 'x') {
+				if(entrySize > MAX_EXTENSION_SIZE) {
+					throw new IOException("Extended header too large at byte " + (position - n));
+				}
+				byte[] data = in.readNBytes((int) padded);
+				position += data.length;
+				if(data.length < padded) {
+					return false;
+				}
+				if(type == 'L') {
+					longName = readString(data, 0, (int) entrySize);
+				} else {
+					for(String[] record : paxRecords(data, (int) entrySize)) {
+						if(record[0].equals("path")) {
+							paxName = record[1];
+						} else if(record[0].equals("size")) {
+							paxSize = Long.parseLong(record[1]);
+						}
+					}
+				}
+				continue;
+			}
+
+			if(type != '0' && type != '\0' && type != '7') {
+				// directories, links, global pax headers, ...
+				skip = padded;
+				longName = null;
+				paxName = null;
+				paxSize = -1;
+				continue;
+			}
+
+			size = paxSize >= 0 ? paxSize : entrySize;
+			skip = (size + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+			offset = position;
+			if(paxName != null) {
+				name = paxName;
+			} else if(longName != null) {
+				name = longName;
+			} else {
+				name = readString(header, 0, 100);
+				String prefix = isUstar() ? readString(header, OFFSET_PREFIX, 155) : "";
+				if(!prefix.isEmpty()) {
+					name = prefix + "/" + name;
+				}
+			}
+			return true;
+		}
+	}
+
+	/**
+	 * @return the data of the current entry, the archive stream is not closed with it
+	 */
+	InputStream entryStream() {
+		return new BoundedInputStream(in, size, false) {
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if(n > 0) {
+					position += n;
+					skip -= n;
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				position += skipped;
+				skip -= skipped;
+				return skipped;
+			}
+		};
+	}
+
+	String getName() {
+		return name;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	/**
+	 * @return position of the data of the current entry in the (decompressed) archive
+	 */
+	long getOffset() {
+		return offset;
+	}
+
+	private boolean isUstar() {
+		return readString(header, OFFSET_MAGIC, 5).equals("ustar");
+	}
+
+	/**
+	 * Numbers are octal, terminated by a space or NUL. GNU tar stores sizes of 8 GiB and more in base-256,
+	 * flagged by the highest bit of the first byte.
+	 */
+	private long readNumber(int offset, int length) throws IOException {
+		if((header[offset] & 0x80) != 0) {
+			long value = header[offset] & 0x7f;
+			for(int i = 1; i < length; i++) {
+				value = (value << 8) | (header[offset + i] & 0xff);
+			}
+			return value;
+		}
+
+		long value = 0;
+		int i = offset;
+		while(i < offset + length && header[i] == ' ') {
+			i++;
+		}
+		for(; i < offset + length && header[i] != 0 && header[i] != ' '; i++) {
+			if(header[i] < '0' || header[i] > '7') {
+				throw new IOException("Not a tar archive, invalid number in header");
+			}
+			value = (value << 3) | (header[i] - '0');
+		}
+		return value;
+	}
+
+	/**
+	 * @return sum of all header bytes, with the checksum field counted as spaces
+	 */
+	private static long checksum(byte[] header) {
+		long sum = 0;
+		for(int i = 0; i < header.length; i++) {
+			boolean checksumField = i >= OFFSET_CHECKSUM && i < OFFSET_CHECKSUM + 8;
+			sum += checksumField ? ' ' : header[i] & 0xff;
+		}
+		return sum;
+	}
+
+	/**
+	 * Pax records have the form "length key=value\n", the length counting the whole record.
+	 */
+	private static List<String[]> paxRecords(byte[] data, int length) throws IOException {
+		List<String[]> records = new ArrayList<String[]>();
+		int pos = 0;
+		while(pos < length) {
+			int space = pos;
+			while(space < length && data[space] != ' ') {
+				space++;
+			}
+			int recordLength;
+			try {
+				recordLength = Integer.parseInt(new String(data, pos, space - pos, StandardCharsets.US_ASCII));
+			} catch (NumberFormatException e) {
+				throw new IOException("Invalid pax header", e);
+			}
+			if(recordLength <= space - pos || pos + recordLength > length) {
+				throw new IOException("Invalid pax header");
+			}
+
+			String record = new String(data, space + 1, pos + recordLength - space - 2, StandardCharsets.UTF_8);
+			int equals = record.indexOf('=');
+			if(equals > 0) {
+				records.add(new String[] { record.substring(0, equals), record.substring(equals + 1) });
+			}
+			pos += recordLength;
+		}
+		return records;
+	}
+
+	private static String readString(byte[] b, int offset, int length) {
+		int end = offset;
+		while(end < offset + length && b[end] != 0) {
+			end++;
+		}
+		return new String(b, offset, end - offset, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isZero(byte[] b) {
+		for(byte x : b) {
+			if(x != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,39 @@
+package whatsappbackupreader;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the executors for work on many files, which mostly waits for I/O. This version uses platform threads.
+ * The multi-release jar contains a version in src/main/java21 that uses virtual threads on Java 21 and newer.
+ */
+final class TaskExecutors {
+
+	private TaskExecutors() {
+	}
+
+	/**
+	 * @return default number of files processed at the same time
+	 */
+	static int defaultIoThreads() {
+		return Runtime.getRuntime().availableProcessors();
+	}
+
+	static boolean isVirtual() {
+		return false;
+	}
+
+	/**
+	 * @param name prefix of the thread names
+	 * @param threads maximum number of tasks running at the same time
+	 */
+	static ExecutorService newIoExecutor(String name, int threads) {
+		AtomicInteger threadNumber = new AtomicInteger();
+		return Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, name + "-" + threadNumber.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		});
+	}
+}
@@ -0,0 +1,120 @@
+package whatsappbackupreader;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that holds back the last bytes of the underlying stream. A crypt15 file ends with the
+ * authentication tag and the md5 checksum, which must not be passed to the cipher. As the end is only
+ * known once the underlying stream is exhausted, the trailer is kept back and made available through
+ * {@link #getTrailer()}.
+ */
+class TrailerInputStream extends FilterInputStream {
+
+	private final int trailerLength;
+	private final byte[] window;
+	private int count = 0;
+	private boolean eof = false;
+
+	TrailerInputStream(InputStream in, int trailerLength, int bufferSize) {
+		this(in, trailerLength, new byte[trailerLength + bufferSize]);
+	}
+
+	/**
+	 * Uses the given array as buffer, e.g. to reuse it for the next file. It must be longer than the trailer.
+	 */
+	TrailerInputStream(InputStream in, int trailerLength, byte[] window) {
+		super(in);
+		if(window.length <= trailerLength) {
+			throw new IllegalArgumentException("Buffer must be longer than the trailer");
+		}
+		this.trailerLength = trailerLength;
+		this.window = window;
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] b = new byte[1];
+		int n = read(b, 0, 1);
+		return n == -1 ? -1 : Byte.toUnsignedInt(b[0]);
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if(len == 0) {
+			return 0;
+		}
+
+		while(!eof && count <= trailerLength) {
+			int n = in.read(window, count, window.length - count);
+			if(n == -1) {
+				eof = true;
+			} else {
+				count += n;
+			}
+		}
+
+		int available = count - trailerLength;
+		if(available <= 0) {
+			return -1;
+		}
+
+		int n = Math.min(len, available);
+		System.arraycopy(window, 0, b, off, n);
+		System.arraycopy(window, n, window, 0, count - n);
+		count -= n;
+
+		return n;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		byte[] b = new byte[(int) Math.min(n, 8192)];
+		long skipped = 0;
+		while(skipped < n) {
+			int r = read(b, 0, (int) Math.min(b.length, n - skipped));
+			if(r == -1) {
+				break;
+			}
+			skipped += r;
+		}
+		return skipped;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return Math.max(0, count - trailerLength);
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public synchronized void mark(int readlimit) {
+	}
+
+	@Override
+	public synchronized void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * @return the held back bytes, only available after the stream has been read to its end
+	 * @throws IOException if the stream is not exhausted yet or is shorter than the trailer
+	 */
+	byte[] getTrailer() throws IOException {
+		if(!eof || count > trailerLength) {
+			throw new IOException("Stream has not been read completely");
+		}
+		if(count < trailerLength) {
+			throw new IOException("Stream is too short");
+		}
+
+		byte[] trailer = new byte[trailerLength];
+		System.arraycopy(window, 0, trailer, 0, trailerLength);
+		return trailer;
+	}
+}
@@ -0,0 +1,66 @@
+package whatsappbackupreader;
+
+/**
+ * Outcome of {@link WhatsappBackupReader#verify()}.
+ */
+public class VerificationResult {
+
+	private final boolean checksumValid;
+	private final boolean tagValid;
+	private final String appVersion;
+	private final long fileSize;
+	private final long encryptedSize;
+
+	VerificationResult(boolean checksumValid, boolean tagValid, String appVersion, long fileSize, long encryptedSize) {
+		this.checksumValid = checksumValid;
+		this.tagValid = tagValid;
+		this.appVersion = appVersion;
+		this.fileSize = fileSize;
+		this.encryptedSize = encryptedSize;
+	}
+
+	/**
+	 * @return true if the md5 checksum at the end of the file matches its content
+	 */
+	public boolean isChecksumValid() {
+		return checksumValid;
+	}
+
+	/**
+	 * @return true if the authentication tag matches, i.e. the key is correct and the encrypted data is intact
+	 */
+	public boolean isTagValid() {
+		return tagValid;
+	}
+
+	public boolean isValid() {
+		return checksumValid && tagValid;
+	}
+
+	/**
+	 * @return Whatsapp version that created the backup
+	 */
+	public String getAppVersion() {
+		return appVersion;
+	}
+
+	/**
+	 * @return size of the crypt file in bytes
+	 */
+	public long getFileSize() {
+		return fileSize;
+	}
+
+	/**
+	 * @return number of encrypted bytes between header and authentication tag
+	 */
+	public long getEncryptedSize() {
+		return encryptedSize;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("checksum %s, tag %s, app version %s, %d bytes, %d encrypted bytes",
+				checksumValid ? "ok" : "invalid", tagValid ? "ok" : "invalid", appVersion, fileSize, encryptedSize);
+	}
+}
@@ -1,21 +1,32 @@
 package whatsappbackupreader;
 
-import java.io.FileOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.InvalidAlgorithmParameterException;
+import java.security.DigestInputStream;
 import java.security.InvalidKeyException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.FutureTask;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.Mac;
 import javax.crypto.NoSuchPaddingException;
 import javax.crypto.spec.GCMParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -23,48 +34,108 @@ import javax.crypto.spec.SecretKeySpec;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
-import com.google.protobuf.InvalidProtocolBufferException;
-
-import whatsappbackupreader.protos.BackupPrefixOuterClass.BackupPrefix;
-
-public class WhatsappBackupReader {
+/**
+ * Decrypts one crypt file. The reader holds an inflater and buffers, which are reused by further calls of
+ * {@link #decrypt()} and released by {@link #close()}.
+ */
+public class WhatsappBackupReader implements AutoCloseable {
 	
 	private static Logger logger = LogManager.getLogger(WhatsappBackupReader.class);
 	
+	private BackupSource source;
+	private Path cryptPath;
 	private Path outputPath;
 	
 	private byte[] keyFileData;
+	private BackupKey key;
+	
+	private DecryptionMode decryptionMode = DecryptionMode.IN_MEMORY;
+	private int chunkSize = DEFAULT_CHUNK_SIZE;
+	private ForkJoinPool forkJoinPool = ForkJoinPool.commonPool();
+	private ChecksumVerification checksumVerification = ChecksumVerification.BEFORE_DECRYPTION;
+	private int pipelineDepth = DEFAULT_PIPELINE_DEPTH;
+	private PipelineStatistics pipelineStatistics;
+	private ProgressListener progressListener;
+	private FsyncPolicy fsyncPolicy = FsyncPolicy.AT_END;
 	
 	private byte[] cryptFileData;
 	int pos = 0;
 	
+	private Inflater zlib;
+	private byte[] inflateBuffer;
+	private ByteBuffer directChunk;
+	private ByteBuffer directBuffer;
+	private boolean closed;
+	
 	private byte[] iv;
 	
 	private final int LENGTH_CHECKSUM = 16;
 	private final int LENGTH_AUTHENTICATION_TAG = 16;
-	private final String ALGORITHM = "HmacSHA256";
-	private final String MESSAGE_STRING = "backup encryption";
-	private final String HEX_VALUES = "0123456789ABCDEF";
+	
+	private static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+	private static final int INFLATE_BUFFER_SIZE = 64 * 1024;
+	private static final int DEFAULT_PIPELINE_DEPTH = 4;
+	private static final int MAX_HEADER_LENGTH = 2 + 255;
+	private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+	private static final long MAX_IN_MEMORY_SIZE = Integer.MAX_VALUE - 8;
 	
 	
 	public WhatsappBackupReader(Path cryptPath, Path keyPath, Path outputPath) throws WhatsappBackupReaderException {
 		try {
-			setup(cryptPath, Files.readAllBytes(keyPath), outputPath);
+			setup(BackupSource.of(cryptPath), Files.readAllBytes(keyPath), outputPath);
 		} catch (IOException e) {
 			throw new WhatsappBackupReaderException("Cannot read key or encrypted file", e);
 		}
 	}
 	
 	public WhatsappBackupReader(Path cryptPath, byte[] keyFileData, Path outputPath) throws WhatsappBackupReaderException {
-		setup(cryptPath, keyFileData, outputPath);
+		setup(BackupSource.of(cryptPath), keyFileData, outputPath);
+	}
+	
+	/**
+	 * Uses an already derived key, e.g. to decrypt many files with the same key.
+	 */
+	public WhatsappBackupReader(Path cryptPath, BackupKey key, Path outputPath) throws WhatsappBackupReaderException {
+		this(BackupSource.of(cryptPath), key, outputPath);
+	}
+	
+	/**
+	 * Reads the crypt file from a stream, channel or archive entry instead of a file.
+	 */
+	public WhatsappBackupReader(BackupSource source, byte[] keyFileData, Path outputPath) throws WhatsappBackupReaderException {
+		setup(source, keyFileData, outputPath);
 	}
 	
-	private void setup(Path cryptPath, byte[] keyFileData, Path outputPath) throws WhatsappBackupReaderException {
+	/**
+	 * Reads the crypt file from a stream, channel or archive entry with an already derived key.
+	 */
+	public WhatsappBackupReader(BackupSource source, BackupKey key, Path outputPath) throws WhatsappBackupReaderException {
+		setup(source, null, outputPath);
+		this.key = key;
+	}
+	
+	private void setup(BackupSource source, byte[] keyFileData, Path outputPath) throws WhatsappBackupReaderException {
+		this.source = source;
+		this.cryptPath = source.getPath();
 		this.outputPath = outputPath;
 		this.keyFileData = keyFileData;
 		
+		if(cryptPath != null && !Files.isReadable(cryptPath)) {
+			throw new WhatsappBackupReaderException("Cannot read encrypted file " + cryptPath);
+		}
+		
+		pos = 0;
+	}
+	
+	private void readCryptFile() throws WhatsappBackupReaderException {
 		try {
-			this.cryptFileData = Files.readAllBytes(cryptPath);
+			if(cryptPath != null) {
+				this.cryptFileData = Files.readAllBytes(cryptPath);
+			} else {
+				try(InputStream in = source.open()) {
+					this.cryptFileData = in.readAllBytes();
+				}
+			}
 		} catch (IOException e) {
 			throw new WhatsappBackupReaderException("Cannot read key or encrypted file", e);
 		}
@@ -77,184 +148,534 @@ public class WhatsappBackupReader {
 	 * @throws WhatsappBackupReaderException
 	 */
 	private void parseHeader() throws WhatsappBackupReaderException {
-		byte buf = 0;
-		
-		buf = cryptFileData[pos]; pos++;
-		
-		int protobufSize = Byte.toUnsignedInt(buf);
-		
-		// A 0x01 as a second byte indicates the presence of the feature table in the protobuf.
-		// It is optional and present only in msgstore database, although
-        // Some old msgstore backups exist without it, so it is optional.
-		buf = cryptFileData[pos]; pos++;
-		int msgstoreFeaturesFlag = Byte.toUnsignedInt(buf);
-        if(msgstoreFeaturesFlag != 1) {  
-            msgstoreFeaturesFlag = 0;
-        }
-        
-        if(msgstoreFeaturesFlag == 0) {   
-        	System.out.println("No feature table found (not a msgstore DB or very old)");
-        }
-
-        byte[] protobufRaw = Arrays.copyOfRange(cryptFileData, pos, pos + protobufSize); pos += protobufSize;
-        
-        BackupPrefix header;
-        try {
-			header = BackupPrefix.parseFrom(protobufRaw);
-		} catch (InvalidProtocolBufferException e) {
-			throw new WhatsappBackupReaderException("Could not backup prefix protobuf", e);
+		BackupHeader header = BackupHeader.read(new ByteArrayInputStream(cryptFileData, pos, cryptFileData.length - pos));
+		pos += header.getLength();
+		this.iv = header.getIv();
+	}
+	
+	public void decrypt() throws WhatsappBackupReaderException {
+		logger.info("Writing to: " + outputPath);
+		decrypt(() -> new DatabaseWriter(outputPath, fsyncPolicy, progressListener));
+	}
+	
+	/**
+	 * Writes the database to a channel instead of the output path, e.g. a pipe to another process. The in-memory
+	 * modes check checksum and authentication tag before writing anything. The other modes only know them after the
+	 * last chunk was written, so the receiver must discard the data if an exception is thrown. The channel is not
+	 * closed.
+	 */
+	public void decrypt(WritableByteChannel out) throws WhatsappBackupReaderException {
+		decrypt(() -> new DatabaseWriter(out, progressListener));
+	}
+	
+	/**
+	 * Writes the database to a stream like {@link #decrypt(WritableByteChannel)} and flushes it. The stream is not
+	 * closed.
+	 */
+	public void decrypt(OutputStream out) throws WhatsappBackupReaderException {
+		decrypt(Channels.newChannel(out));
+		try {
+			out.flush();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Could not write output", e);
 		}
-        
-        logger.info("Whatsapp version: " + header.getInfo().getAppVersion());
-        
-        if(header.hasC15Iv()) {
-        	int size = header.getC15Iv().getIV().size();
-        	if(size != 16) {
-        		throw new WhatsappBackupReaderException(
-        				String.format("IV is not 16 bytes long but is %d bytes long", size)
-        		);
-        	}
-        	
-        	this.iv = header.getC15Iv().getIV().toByteArray();
-        	
-        } else if(header.hasC14Cipher()) {
-        	throw new WhatsappBackupReaderException("C14 not implemented");
-        } else {
-        	throw new WhatsappBackupReaderException("Unknown encryption");
-        }
-	}
-	
-	// see https://raw.githubusercontent.com/ElDavoo/wa-crypt-tools/main/src/wa_crypt_tools/lib/key/key15.py for more information
-	private byte[] calculateKey(byte[] key) throws NoSuchAlgorithmException, InvalidKeyException {
-		byte[] privateseed = new byte[32];
+	}
+	
+	private void decrypt(BackupDecryptor.Output output) throws WhatsappBackupReaderException {
+		checkOpen();
+		byte[] key = deriveKey();
 		
-		byte[] message = MESSAGE_STRING.getBytes();
+		long size = cryptFileSize();
+		DecryptionMode mode = effectiveMode(size);
+		if(mode != decryptionMode) {
+			String reason = decryptionMode == DecryptionMode.MAPPED ? "is no file and cannot be mapped"
+					: size < 0 ? "has an unknown size" : "is too large to be decrypted in memory";
+			logger.warn(String.format("%s %s. Using streaming mode", source, reason));
+		}
 		
-		SecretKeySpec secretKeySpec = new SecretKeySpec(privateseed, ALGORITHM);
-		Mac mac = Mac.getInstance(ALGORITHM);
-		mac.init(secretKeySpec);
-		mac.update(key);
+		switch(mode) {
+		case STREAMING:
+			decryptStreaming(output);
+			break;
+		case PIPELINED:
+			decryptPipelined(key, output);
+			break;
+		case MAPPED:
+			decryptMapped(key, output);
+			break;
+		default:
+			try {
+				decryptInMemory(key, output);
+			} finally {
+				// the file and the checksum thread keep their own reference
+				cryptFileData = null;
+			}
+			break;
+		}
+	}
+	
+	/**
+	 * Ends the inflater, which holds native memory until then, and returns the buffers to the pool. The reader
+	 * cannot be used anymore afterwards.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		cryptFileData = null;
+		inflateBuffer = null;
+		if(zlib != null) {
+			zlib.end();
+			zlib = null;
+		}
+		if(directChunk != null) {
+			DirectBufferPool.shared().release(directChunk);
+			directChunk = null;
+		}
+		if(directBuffer != null) {
+			DirectBufferPool.shared().release(directBuffer);
+			directBuffer = null;
+		}
+	}
+	
+	private void checkOpen() {
+		if(closed) {
+			throw new IllegalStateException("Reader is closed");
+		}
+	}
+	
+	/**
+	 * @return the inflater of this reader, reset for a new stream
+	 */
+	private Inflater inflater() {
+		if(zlib == null) {
+			zlib = new Inflater(false);
+		}
+		zlib.reset();
+		return zlib;
+	}
+	
+	/**
+	 * Estimates the peak memory {@link #decrypt()} needs with the current mode and buffer sizes, e.g. to decide
+	 * how many files can be decrypted at the same time. Mapped files are not counted, as the operating system
+	 * can drop their pages at any time.
+	 * @return number of bytes on the heap and in direct buffers
+	 */
+	public long estimateMemory() throws WhatsappBackupReaderException {
+		long size = cryptFileSize();
 		
-		byte[] privatekey = mac.doFinal();
+		switch(effectiveMode(size)) {
+		case STREAMING:
+			return 2L * chunkSize + INFLATE_BUFFER_SIZE + DatabaseWriter.BUFFER_SIZE;
+		case PIPELINED:
+			return (2L * pipelineDepth + 1) * chunkSize + DatabaseWriter.BUFFER_SIZE;
+		case MAPPED:
+			return (long) chunkSize + INFLATE_BUFFER_SIZE + DatabaseWriter.BUFFER_SIZE;
+		default:
+			// the whole file and its decrypted content
+			return 2 * size + INFLATE_BUFFER_SIZE + DatabaseWriter.BUFFER_SIZE;
+		}
+	}
+	
+	private DecryptionMode effectiveMode(long size) {
+		// a java array cannot hold more than 2 GiB
+		if((decryptionMode == DecryptionMode.IN_MEMORY || decryptionMode == DecryptionMode.PARALLEL)
+				&& (size < 0 || size > MAX_IN_MEMORY_SIZE)) {
+			return DecryptionMode.STREAMING;
+		}
+		if(decryptionMode == DecryptionMode.MAPPED && cryptPath == null) {
+			return DecryptionMode.STREAMING;
+		}
 		
-		SecretKeySpec hasherSpec = new SecretKeySpec(privatekey, ALGORITHM);
-		Mac hasher = Mac.getInstance(ALGORITHM);
-		hasher.init(hasherSpec);
-		hasher.update(message);
+		return decryptionMode;
+	}
+	
+	/**
+	 * @return size of the crypt file, -1 if the source does not know it
+	 */
+	long cryptFileSize() throws WhatsappBackupReaderException {
+		if(cryptPath == null) {
+			return source.size();
+		}
 		
-		byte b = (byte)1;
-		hasher.update(b);
-		byte[] buf = hasher.doFinal();
+		try {
+			return Files.size(cryptPath);
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Cannot read key or encrypted file", e);
+		}
+	}
+	
+	/**
+	 * @return the key used for decryption, derived from the key file on first use
+	 */
+	BackupKey getBackupKey() throws WhatsappBackupReaderException {
+		deriveKey();
+		return key;
+	}
+	
+	private byte[] deriveKey() throws WhatsappBackupReaderException {
+		if(key == null) {
+			key = BackupKey.of(keyFileData);
+		}
 		
-		return buf;
+		return key.getAesKey();
 	}
 	
-	public void decrypt() throws WhatsappBackupReaderException {
+	private void decryptInMemory(byte[] key, BackupDecryptor.Output output) throws WhatsappBackupReaderException {
+		readCryptFile();
 		parseHeader();
 		
-		// calculate the key
-		String keyFileStr = new String(keyFileData);
-		byte[] keyFileArr = hexStringToByteArray(keyFileStr);
+		byte[] data = cryptFileData;
+		int checkSumStart = data.length - LENGTH_CHECKSUM;
+		if(checkSumStart - LENGTH_AUTHENTICATION_TAG < pos) {
+			throw new WhatsappBackupReaderException("File too short");
+		}
+		
+		// if check md5-checksum is correct
+		FutureTask<Boolean> checksum = null;
+		if(checksumVerification == ChecksumVerification.BEFORE_DECRYPTION) {
+			if(!checksumMatches(data, checkSumStart)) {
+				throw new WhatsappBackupReaderException("Checksums not equal");
+			}
+		} else {
+			checksum = new FutureTask<Boolean>(() -> checksumMatches(data, checkSumStart));
+			Thread t = new Thread(checksum, "md5-verification");
+			t.setDaemon(true);
+			t.start();
+		}
 		
-		byte[] key;
+		// decrypt
+		byte[] decrypted;
 		try {
-			key = calculateKey(keyFileArr);
-		} catch (InvalidKeyException | NoSuchAlgorithmException e) {
-			throw new WhatsappBackupReaderException("Cannot initialize keys", e);
+			if(decryptionMode == DecryptionMode.PARALLEL) {
+				decrypted = decryptParallel(key, checkSumStart);
+			} else {
+				decrypted = decryptGcm(key, checkSumStart);
+			}
+		} catch (WhatsappBackupReaderException e) {
+			// a corrupted file fails both checks, report the checksum as the sequential verification does
+			if(checksum != null && !awaitChecksum(checksum)) {
+				throw new WhatsappBackupReaderException("Checksums not equal");
+			}
+			throw e;
 		}
+		checkChecksumFailFast(checksum);
 		
-		int checkSumStart = cryptFileData.length - LENGTH_CHECKSUM;
-		byte[] checksumExpected = Arrays.copyOfRange(cryptFileData, checkSumStart, cryptFileData.length);
+		// unzip
+		Inflater zlib = inflater();
+		if(inflateBuffer == null) {
+			inflateBuffer = new byte[INFLATE_BUFFER_SIZE];
+		}
+		try(DatabaseWriter s = output.open()) {
+			s.setCryptSize(data.length);
+			zlib.setInput(decrypted, 0, decrypted.length);
+            byte[] buf = inflateBuffer;
+            while(!zlib.needsInput()) {
+                int l = zlib.inflate(buf, 0, buf.length);
+                if(l > 0) s.write(buf, 0, l);
+                checkChecksumFailFast(checksum);
+            }
+            
+            // with FAIL_AT_END the output is kept even if the checksums differ
+            if(checksumVerification == ChecksumVerification.FAIL_FAST && !awaitChecksum(checksum)) {
+            	throw new WhatsappBackupReaderException("Checksums not equal");
+            }
+            s.commit();
+        } catch (IOException | DataFormatException e) {
+        	throw new WhatsappBackupReaderException("Could not decompress", e);
+		}
 		
-		// if check md5-checksum is correct
-		MessageDigest md5;
-		try {
-			md5 = MessageDigest.getInstance("MD5");
-		} catch (NoSuchAlgorithmException e) {
-			throw new WhatsappBackupReaderException("Cannot initiate md5 sum generator", e);
+		if(checksum != null && !awaitChecksum(checksum)) {
+			throw new WhatsappBackupReaderException("Checksums not equal");
 		}
+	}
+	
+	private static boolean checksumMatches(byte[] data, int checkSumStart) throws WhatsappBackupReaderException {
+		byte[] checksumExpected = Arrays.copyOfRange(data, checkSumStart, data.length);
 		
-		md5.update(cryptFileData, 0, checkSumStart);
+		MessageDigest md5 = BackupDecryptor.newMd5();
+		md5.update(data, 0, checkSumStart);
 		byte[] checksumActual = md5.digest();
 		
-		if(!Arrays.equals(checksumExpected, checksumActual)) {
+		return Arrays.equals(checksumExpected, checksumActual);
+	}
+	
+	/**
+	 * Aborts with {@link ChecksumVerification#FAIL_FAST} once the concurrent checksum verification found a mismatch.
+	 */
+	private void checkChecksumFailFast(FutureTask<Boolean> checksum) throws WhatsappBackupReaderException {
+		if(checksumVerification == ChecksumVerification.FAIL_FAST && checksum.isDone() && !awaitChecksum(checksum)) {
 			throw new WhatsappBackupReaderException("Checksums not equal");
 		}
-		
-		// decrypt
+	}
+	
+	private boolean awaitChecksum(FutureTask<Boolean> checksum) throws WhatsappBackupReaderException {
+		try {
+			return checksum.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new WhatsappBackupReaderException("Interrupted while verifying checksum", e);
+		} catch (ExecutionException e) {
+			if(e.getCause() instanceof WhatsappBackupReaderException) {
+				throw (WhatsappBackupReaderException) e.getCause();
+			}
+			throw new WhatsappBackupReaderException("Cannot verify checksum", e.getCause());
+		}
+	}
+	
+	private Cipher newGcmCipher(byte[] key, byte[] iv) throws WhatsappBackupReaderException {
 		GCMParameterSpec parameterSpec = new GCMParameterSpec(LENGTH_AUTHENTICATION_TAG*8, iv);
 		SecretKeySpec secretKeySpec = new SecretKeySpec(key, "AES");
 		
-		Cipher cipher;
 		try {
-			cipher = Cipher.getInstance("AES/GCM/NoPadding");
+			Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
 			cipher.init(Cipher.DECRYPT_MODE, secretKeySpec, parameterSpec);
+			return cipher;
 		} catch (NoSuchAlgorithmException | NoSuchPaddingException | InvalidKeyException | InvalidAlgorithmParameterException e) {
 			throw new WhatsappBackupReaderException("Could not initialize cipher", e);
 		}
+	}
+	
+	private byte[] decryptGcm(byte[] key, int checkSumStart) throws WhatsappBackupReaderException {
+		Cipher cipher = newGcmCipher(key, iv);
 		
-		byte[] decrypted;
 		try {
-			decrypted = cipher.doFinal(cryptFileData, pos, checkSumStart - pos);
+			return cipher.doFinal(cryptFileData, pos, checkSumStart - pos);
 		} catch (IllegalBlockSizeException | BadPaddingException e) {
 			throw new WhatsappBackupReaderException("Could not decrypt", e);
 		}
-		
-		// unzip
-		Inflater zlib = new Inflater(false);
-		logger.info("Writing to: " + outputPath);
-		try(FileOutputStream s = new FileOutputStream(outputPath.toFile())) {
-			zlib.setInput(decrypted, 0, decrypted.length);
-            byte[] buf = new byte[1024];
-            while(!zlib.needsInput()) {
-                int l = zlib.inflate(buf, 0, buf.length);
-                if(l > 0) s.write(buf, 0, l);
-            }
-        } catch (IOException | DataFormatException e) {
-        	throw new WhatsappBackupReaderException("Could not decompress", e);
-		}
 	}
 	
-	private byte hexCharToByte(char c) throws WhatsappBackupReaderException {
-		c = Character.toUpperCase(c);
-		int i = HEX_VALUES.indexOf(c);
-		if(i==-1) {
-			throw new WhatsappBackupReaderException("Bad hex character");
-		}
-		
-		return (byte)i;
+	private byte[] decryptParallel(byte[] key, int checkSumStart) throws WhatsappBackupReaderException {
+		int tagStart = checkSumStart - LENGTH_AUTHENTICATION_TAG;
+		byte[] tag = Arrays.copyOfRange(cryptFileData, tagStart, checkSumStart);
+		ParallelGcmDecryptor decryptor = new ParallelGcmDecryptor(key, iv, forkJoinPool);
+		return decryptor.decrypt(cryptFileData, pos, tagStart - pos, tag);
 	}
 	
-	private byte[] hexStringToByteArray(String str) throws WhatsappBackupReaderException {
-		str = str.replace(" ", "").replace("\n", "");
+	/**
+	 * Decrypts the memory-mapped file with the ByteBuffer variants of cipher and inflater, so the data is never copied
+	 * to the heap. The file is mapped window by window, so files of any size can be processed. Like in
+	 * {@link #decryptStreaming(BackupDecryptor.Output)} the output is only moved into place if checksum and authentication tag match.
+	 */
+	private void decryptMapped(byte[] key, BackupDecryptor.Output output) throws WhatsappBackupReaderException {
+		Inflater zlib = inflater();
 		
-		if(str.length() % 2 != 0) {
-			throw new WhatsappBackupReaderException("Key string length must be divisble by two");
+		try(FileChannel in = FileChannel.open(cryptPath, StandardOpenOption.READ);
+				DatabaseWriter out = output.open()) {
+			long size = in.size();
+			out.setCryptSize(size);
+			long trailerStart = size - LENGTH_AUTHENTICATION_TAG - LENGTH_CHECKSUM;
+			
+			BackupHeader header = BackupHeader.read(in.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, MAX_HEADER_LENGTH)));
+			if(trailerStart < header.getLength()) {
+				throw new WhatsappBackupReaderException("File too short");
+			}
+			
+			MessageDigest md5 = BackupDecryptor.newMd5();
+			GcmDecryptor gcm = new GcmDecryptor(key, header.getIv());
+			if(directChunk != null && directChunk.capacity() != chunkSize) {
+				DirectBufferPool.shared().release(directChunk);
+				directChunk = null;
+			}
+			if(directChunk == null) {
+				directChunk = DirectBufferPool.shared().acquire(chunkSize);
+			}
+			if(directBuffer == null) {
+				directBuffer = DirectBufferPool.shared().acquire(INFLATE_BUFFER_SIZE);
+			}
+			ByteBuffer decrypted = directChunk;
+			ByteBuffer buf = directBuffer;
+			DataFormatException inflateError = null;
+			
+			for(long position = 0; position < trailerStart; position += MAP_WINDOW_SIZE) {
+				MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position,
+						Math.min(MAP_WINDOW_SIZE, trailerStart - position));
+				md5.update(window.duplicate());
+				if(position == 0) {
+					window.position(header.getLength());
+				}
+				
+				while(window.hasRemaining()) {
+					ByteBuffer encrypted = window.slice();
+					encrypted.limit(Math.min(encrypted.limit(), decrypted.capacity()));
+					window.position(window.position() + encrypted.remaining());
+					
+					decrypted.clear();
+					gcm.update(encrypted, decrypted);
+					decrypted.flip();
+					
+					if(inflateError != null) {
+						continue;
+					}
+					
+					zlib.setInput(decrypted);
+					try {
+						while(!zlib.needsInput() && !zlib.finished()) {
+							buf.clear();
+							zlib.inflate(buf);
+							buf.flip();
+							out.write(buf);
+						}
+					} catch (DataFormatException e) {
+						inflateError = e;
+					}
+				}
+			}
+			
+			ByteBuffer trailer = ByteBuffer.allocate(LENGTH_AUTHENTICATION_TAG + LENGTH_CHECKSUM);
+			while(trailer.hasRemaining()) {
+				if(in.read(trailer, trailerStart + trailer.position()) == -1) {
+					throw new WhatsappBackupReaderException("File too short");
+				}
+			}
+			BackupDecryptor.verifyTrailer(trailer.array(), md5, gcm);
+			
+			if(inflateError != null) {
+				throw new WhatsappBackupReaderException("Could not decompress", inflateError);
+			}
+			
+			out.commit();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Could not decompress", e);
 		}
+	}
+	
+	/**
+	 * Decrypts the file chunk by chunk. Checksum and authentication tag are only known after the last chunk,
+	 * so the output is only moved into place if both match.
+	 */
+	private void decryptStreaming(BackupDecryptor.Output output) throws WhatsappBackupReaderException {
+		new BackupDecryptor(chunkSize, fsyncPolicy).decrypt(source, key, output);
+	}
+	
+	/**
+	 * Decrypts the file chunk by chunk like {@link #decryptStreaming(BackupDecryptor.Output)}, but with every stage on its own thread.
+	 */
+	private void decryptPipelined(byte[] key, BackupDecryptor.Output output) throws WhatsappBackupReaderException {
+		MessageDigest md5 = BackupDecryptor.newMd5();
 		
-		byte buf[] = new byte[str.length() / 2];
-		
-		for(int i=0; i<buf.length; i++) {
-			char c1 = str.charAt(2*i);
-			char c2 = str.charAt(2*i+1);
+		try(TrailerInputStream trailerStream = new TrailerInputStream(source.open(),
+					LENGTH_AUTHENTICATION_TAG + LENGTH_CHECKSUM, chunkSize);
+				DatabaseWriter s = output.open()) {
+			s.setCryptSize(source.size());
+			DigestInputStream in = new DigestInputStream(trailerStream, md5);
+			
+			BackupHeader header = BackupHeader.read(in);
+			GcmDecryptor gcm = new GcmDecryptor(key, header.getIv());
+			
+			DecryptionPipeline pipeline = new DecryptionPipeline(in, gcm, s, chunkSize, pipelineDepth);
+			pipelineStatistics = pipeline.run();
+			logger.info("Pipeline: " + pipelineStatistics);
+			
+			BackupDecryptor.verifyTrailer(trailerStream.getTrailer(), md5, gcm);
 			
-			buf[i] = (byte) (hexCharToByte(c1)*16 + hexCharToByte(c2));
+			if(pipeline.getInflateError() != null) {
+				throw new WhatsappBackupReaderException("Could not decompress", pipeline.getInflateError());
+			}
+			
+			s.commit();
+		} catch (IOException e) {
+			throw new WhatsappBackupReaderException("Could not decompress", e);
 		}
-		
-		return buf;
 	}
 	
-	private String byteArrayAsHex(byte[] arr) {
-		return  byteArrayAsHex(arr, arr.length);
+	/**
+	 * Checks md5 checksum and authentication tag without decompressing or writing anything. As the tag is computed
+	 * over the encrypted data, nothing needs to be decrypted either.
+	 * @return the result of both checks, mismatches are not reported as exception
+	 * @throws WhatsappBackupReaderException if the file cannot be read or has no valid header
+	 */
+	public VerificationResult verify() throws WhatsappBackupReaderException {
+		checkOpen();
+		deriveKey();
+		return new BackupDecryptor(chunkSize).verify(source, key);
 	}
 	
-	private String byteArrayAsHex(byte[] arr, int len) {
-		String str = "";
-		
-		for(int i=0; i<len; i++) {
-			str = str + String.format("%02x", arr[i]);
+	public DecryptionMode getDecryptionMode() {
+		return decryptionMode;
+	}
+	
+	public void setDecryptionMode(DecryptionMode decryptionMode) {
+		this.decryptionMode = decryptionMode;
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+	
+	/**
+	 * Sets the size of the chunks read from the crypt file in {@link DecryptionMode#STREAMING} and {@link DecryptionMode#PIPELINED},
+	 * and of the direct buffer each slice of the mapped file is decrypted into in {@link DecryptionMode#MAPPED}.
+	 */
+	public void setChunkSize(int chunkSize) {
+		if(chunkSize <= 0) {
+			throw new IllegalArgumentException("Chunk size must be positive");
 		}
-		
-		return str;
-	}	
+		this.chunkSize = chunkSize;
+	}
+	
+	public ForkJoinPool getForkJoinPool() {
+		return forkJoinPool;
+	}
+	
+	/**
+	 * Sets the pool used in {@link DecryptionMode#PARALLEL}, defaults to the common pool.
+	 */
+	public void setForkJoinPool(ForkJoinPool forkJoinPool) {
+		this.forkJoinPool = forkJoinPool;
+	}
+	
+	public ChecksumVerification getChecksumVerification() {
+		return checksumVerification;
+	}
+	
+	/**
+	 * Sets when the md5 checksum is verified in {@link DecryptionMode#IN_MEMORY} and {@link DecryptionMode#PARALLEL}.
+	 */
+	public void setChecksumVerification(ChecksumVerification checksumVerification) {
+		this.checksumVerification = checksumVerification;
+	}
+	
+	public int getPipelineDepth() {
+		return pipelineDepth;
+	}
+	
+	/**
+	 * Sets the number of chunks each stage of {@link DecryptionMode#PIPELINED} may have in flight.
+	 */
+	public void setPipelineDepth(int pipelineDepth) {
+		if(pipelineDepth <= 0) {
+			throw new IllegalArgumentException("Pipeline depth must be positive");
+		}
+		this.pipelineDepth = pipelineDepth;
+	}
+	
+	public FsyncPolicy getFsyncPolicy() {
+		return fsyncPolicy;
+	}
+	
+	/**
+	 * Sets when the output is forced to the storage device, defaults to {@link FsyncPolicy#AT_END}.
+	 */
+	public void setFsyncPolicy(FsyncPolicy fsyncPolicy) {
+		this.fsyncPolicy = fsyncPolicy;
+	}
+	
+	public ProgressListener getProgressListener() {
+		return progressListener;
+	}
+	
+	/**
+	 * @param progressListener is told how much of the database has been written, may be null
+	 */
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
+	/**
+	 * @return stall times of the last {@link DecryptionMode#PIPELINED} run, null if there was none
+	 */
+	public PipelineStatistics getPipelineStatistics() {
+		return pipelineStatistics;
+	}
 }
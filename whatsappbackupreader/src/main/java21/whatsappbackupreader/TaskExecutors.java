@@ -0,0 +1,98 @@
+package whatsappbackupreader;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the executors for work on many files, which mostly waits for I/O. This version for Java 21 and newer
+ * starts a virtual thread per task, so thousands of tasks can be submitted without sizing a pool. A semaphore
+ * limits how many of them run at the same time, as each holds open files and buffers.
+ */
+final class TaskExecutors {
+
+	private static final int IO_THREADS = 64;
+
+	private TaskExecutors() {
+	}
+
+	/**
+	 * @return default number of files processed at the same time
+	 */
+	static int defaultIoThreads() {
+		return Math.max(IO_THREADS, Runtime.getRuntime().availableProcessors());
+	}
+
+	static boolean isVirtual() {
+		return true;
+	}
+
+	/**
+	 * @param name prefix of the thread names
+	 * @param threads maximum number of tasks running at the same time
+	 */
+	static ExecutorService newIoExecutor(String name, int threads) {
+		return new LimitedExecutor(Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(name + "-", 1).factory()),
+				threads);
+	}
+
+	private static class LimitedExecutor extends AbstractExecutorService {
+
+		private final ExecutorService delegate;
+		private final Semaphore permits;
+
+		LimitedExecutor(ExecutorService delegate, int limit) {
+			this.delegate = delegate;
+			this.permits = new Semaphore(limit);
+		}
+
+		@Override
+		public void execute(Runnable command) {
+			delegate.execute(() -> {
+				try {
+					permits.acquire();
+				} catch (InterruptedException e) {
+					// shut down while waiting, the task never runs
+					if(command instanceof Future) {
+						((Future<?>) command).cancel(false);
+					}
+					return;
+				}
+				try {
+					command.run();
+				} finally {
+					permits.release();
+				}
+			});
+		}
+
+		@Override
+		public void shutdown() {
+			delegate.shutdown();
+		}
+
+		@Override
+		public List<Runnable> shutdownNow() {
+			return delegate.shutdownNow();
+		}
+
+		@Override
+		public boolean isShutdown() {
+			return delegate.isShutdown();
+		}
+
+		@Override
+		public boolean isTerminated() {
+			return delegate.isTerminated();
+		}
+
+		@Override
+		public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+			return delegate.awaitTermination(timeout, unit);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package whatsappbackupreader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Decrypts backups from streams, channels and archive entries in every {@link DecryptionMode}.
+ */
+class BackupSourceTest {
+
+	private static final String ENTRY = "Databases/msgstore.db.crypt15";
+
+	private static byte[] database;
+	private static byte[] backup;
+
+	@TempDir
+	Path dir;
+
+	@BeforeAll
+	static void createBackup() throws Exception {
+		database = TestBackups.database(40, 2);
+		backup = TestBackups.encrypt(database, TestBackups.randomIv(2));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsStreamOfKnownSize(DecryptionMode mode) throws Exception {
+		byte[] trailing = { 1, 2, 3 };
+		InputStream in = new ByteArrayInputStream(concat(backup, trailing));
+
+		assertArrayEquals(database, decrypt(BackupSource.of(in, backup.length), mode));
+		assertArrayEquals(trailing, in.readAllBytes());
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsStream(DecryptionMode mode) throws Exception {
+		assertArrayEquals(database, decrypt(BackupSource.of(new ByteArrayInputStream(backup)), mode));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsChannel(DecryptionMode mode) throws Exception {
+		BackupSource source = BackupSource.of(Channels.newChannel(new ByteArrayInputStream(backup)));
+		assertArrayEquals(database, decrypt(source, mode));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsZipEntry(DecryptionMode mode) throws Exception {
+		Path zip = TestBackups.write(dir, "backup.zip", TestBackups.zip(ENTRY, backup));
+
+		BackupSource source = BackupSource.zipEntry(zip, ENTRY);
+		assertEquals(backup.length, source.size());
+		assertArrayEquals(database, decrypt(source, mode));
+		assertArrayEquals(database, decrypt(BackupSource.zipEntry(zip, null), mode));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsZipStreamEntry(DecryptionMode mode) throws Exception {
+		InputStream zip = new ByteArrayInputStream(TestBackups.zip(ENTRY, backup));
+		assertArrayEquals(database, decrypt(BackupSource.zipEntry(zip, "./" + ENTRY), mode));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsTarEntry(DecryptionMode mode) throws Exception {
+		byte[] tar = TestBackups.tar(ENTRY, backup);
+		Path plain = TestBackups.write(dir, "backup.tar", tar);
+		Path gzipped = TestBackups.write(dir, "backup.tar.gz", TestBackups.gzip(tar));
+
+		BackupSource source = BackupSource.tarEntry(plain, ENTRY);
+		assertEquals(backup.length, source.size());
+		assertArrayEquals(database, decrypt(source, mode));
+		assertArrayEquals(database, decrypt(BackupSource.tarEntry(gzipped, null), mode));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsTarStreamEntry(DecryptionMode mode) throws Exception {
+		InputStream tar = new ByteArrayInputStream(TestBackups.gzip(TestBackups.tar(ENTRY, backup)));
+		assertArrayEquals(database, decrypt(BackupSource.tarEntry(tar, ENTRY), mode));
+	}
+
+	@Test
+	void rejectsMissingEntry() throws Exception {
+		Path zip = TestBackups.write(dir, "backup.zip", TestBackups.zip(ENTRY, backup));
+		Path tar = TestBackups.write(dir, "backup.tar", TestBackups.tar(ENTRY, backup));
+
+		assertThrows(WhatsappBackupReaderException.class, () -> BackupSource.zipEntry(zip, "wa.db.crypt15"));
+		assertThrows(WhatsappBackupReaderException.class, () -> BackupSource.tarEntry(tar, "wa.db.crypt15"));
+	}
+
+	@Test
+	void readsStreamOnce() throws Exception {
+		BackupSource source = BackupSource.of(new ByteArrayInputStream(backup));
+		decrypt(source, DecryptionMode.STREAMING);
+
+		assertThrows(IOException.class, source::open);
+	}
+
+	@Test
+	void rejectsTruncatedStream() throws Exception {
+		InputStream in = new ByteArrayInputStream(backup, 0, backup.length - 100);
+		BackupSource source = BackupSource.of(in, backup.length);
+
+		assertThrows(WhatsappBackupReaderException.class, () -> decrypt(source, DecryptionMode.STREAMING));
+	}
+
+	@Test
+	void decryptsWithBackupDecryptor() throws Exception {
+		Path zip = TestBackups.write(dir, "backup.zip", TestBackups.zip(ENTRY, backup));
+		BackupDecryptor decryptor = new BackupDecryptor(4096);
+
+		Path output = dir.resolve("msgstore.db");
+		decryptor.decrypt(BackupSource.zipEntry(zip, null), TestBackups.key(), output, null);
+		assertArrayEquals(database, Files.readAllBytes(output));
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		decryptor.decrypt(BackupSource.of(new ByteArrayInputStream(backup)), TestBackups.key(), out, null);
+		assertArrayEquals(database, out.toByteArray());
+	}
+
+	private byte[] decrypt(BackupSource source, DecryptionMode mode) throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(WhatsappBackupReader reader = new WhatsappBackupReader(source, TestBackups.key(), dir.resolve("unused.db"))) {
+			reader.setDecryptionMode(mode);
+			reader.setChunkSize(4096);
+			reader.decrypt(out);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] concat(byte[] a, byte[] b) {
+		byte[] c = new byte[a.length + b.length];
+		System.arraycopy(a, 0, c, 0, a.length);
+		System.arraycopy(b, 0, c, a.length, b.length);
+		return c;
+	}
+}
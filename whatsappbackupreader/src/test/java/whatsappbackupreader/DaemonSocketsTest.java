@@ -0,0 +1,63 @@
+package whatsappbackupreader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class DaemonSocketsTest {
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void keepsOtherFiles() throws Exception {
+		byte[] database = TestBackups.database(1, 3);
+		Path path = TestBackups.write(dir, "msgstore.db", database);
+
+		assertThrows(IOException.class, () -> DaemonSockets.listen(path));
+		assertArrayEquals(database, Files.readAllBytes(path));
+	}
+
+	@Test
+	void keepsSocketOfRunningDaemon() throws Exception {
+		Path path = dir.resolve("wbr.sock");
+		DaemonSockets.Server server = DaemonSockets.listen(path);
+		try {
+			assertThrows(IOException.class, () -> DaemonSockets.listen(path));
+
+			DaemonSockets.Client client = DaemonSockets.connect(path);
+			assertNotNull(server.channel.accept());
+			client.channel.close();
+		} finally {
+			server.channel.close();
+		}
+	}
+
+	@Test
+	void replacesStaleSocket() throws Exception {
+		Path path = dir.resolve("wbr.sock");
+		// a crashed daemon leaves its socket or token file behind
+		DaemonSockets.listen(path).channel.close();
+
+		DaemonSockets.Server server = DaemonSockets.listen(path);
+		try {
+			DaemonSockets.connect(path).channel.close();
+		} finally {
+			server.channel.close();
+		}
+	}
+
+	@Test
+	void replacesStaleTokenFile() throws Exception {
+		Path path = TestBackups.write(dir, "wbr.sock", "tcp 1 0123456789abcdef0123456789abcdef\n".getBytes());
+
+		DaemonSockets.listen(path).channel.close();
+	}
+}
@@ -0,0 +1,95 @@
+package whatsappbackupreader;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import org.junit.jupiter.api.Test;
+
+class DecryptionSchedulerTest {
+
+	@Test
+	void startsHeldJobsLargestFirst() throws Exception {
+		List<Long> started = Collections.synchronizedList(new ArrayList<Long>());
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(100, 1)) {
+			scheduler.hold();
+			for(long size : new long[] { 10, 30, 20, 50, 40 }) {
+				scheduler.submit(() -> started.add(size), 1, size);
+			}
+			assertEquals(5, scheduler.getQueueDepth());
+			scheduler.release();
+		}
+
+		assertEquals(Arrays.asList(50L, 40L, 30L, 20L, 10L), started);
+	}
+
+	@Test
+	void ordersBySizeNotMemory() throws Exception {
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(100, 1)) {
+			scheduler.hold();
+			scheduler.submit(() -> started.add("small file, large buffers"), 90, 10);
+			scheduler.submit(() -> started.add("large file, small buffers"), 10, 90);
+		}
+
+		assertEquals(Arrays.asList("large file, small buffers", "small file, large buffers"), started);
+	}
+
+	@Test
+	void skipsJobsThatDoNotFit() throws Exception {
+		CountDownLatch blocking = new CountDownLatch(1);
+		List<String> started = Collections.synchronizedList(new ArrayList<String>());
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(100, 2)) {
+			scheduler.submit(() -> blocking.await(10, TimeUnit.SECONDS), 60, 1);
+			scheduler.hold();
+			scheduler.submit(() -> started.add("large"), 50, 90);
+			scheduler.submit(() -> started.add("fits"), 40, 10);
+			scheduler.release();
+
+			// only the job that fits next to the running one may start
+			waitFor(() -> started.size() == 1);
+			assertEquals(Arrays.asList("fits"), started);
+			assertEquals(1, scheduler.getQueueDepth());
+			blocking.countDown();
+		}
+
+		assertEquals(Arrays.asList("fits", "large"), started);
+	}
+
+	@Test
+	void startsJobLargerThanBudgetAlone() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(100, 2)) {
+			scheduler.submit(() -> runs.incrementAndGet(), 1000, 1);
+		}
+
+		assertEquals(1, runs.get());
+	}
+
+	@Test
+	void startsHeldJobsOnClose() throws Exception {
+		AtomicInteger runs = new AtomicInteger();
+		try(DecryptionScheduler scheduler = new DecryptionScheduler(100, 2)) {
+			scheduler.hold();
+			scheduler.submit(() -> runs.incrementAndGet(), 1, 1);
+		}
+
+		assertEquals(1, runs.get());
+	}
+
+	private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while(!condition.getAsBoolean()) {
+			assertTrue(System.nanoTime() < end, "timed out");
+			Thread.sleep(5);
+		}
+	}
+}
@@ -0,0 +1,205 @@
+package whatsappbackupreader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.CsvSource;
+
+/**
+ * Checks the CTR/GHASH decryption against published GCM test vectors and against the JDK's AES/GCM/NoPadding.
+ */
+class GcmDecryptorTest {
+
+	/** Ciphertext over three segments of {@link ParallelGcmDecryptor}, ending with an incomplete block. */
+	private static final int LENGTH = 600 * 1024 + 7;
+	private static final int BLOCKS_BEFORE_WRAP = 20000;
+	private static final int[] PIECE_SIZES = { 1, 15, 17, 1000, 4093, 65537 };
+
+	private static byte[] key;
+	private static byte[] iv;
+	private static byte[] plain;
+	private static byte[] ciphertext;
+	private static byte[] tag;
+
+	/**
+	 * Encrypts random data with the JDK, with an IV whose 32-bit block counter wraps around in the second segment.
+	 */
+	@BeforeAll
+	static void encryptWithJdk() throws Exception {
+		Random random = new Random(15);
+		key = new byte[32];
+		random.nextBytes(key);
+		plain = new byte[LENGTH];
+		random.nextBytes(plain);
+		iv = TestBackups.ivWithCounter(key, 15, -1 - BLOCKS_BEFORE_WRAP);
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new GCMParameterSpec(128, iv));
+		byte[] sealed = cipher.doFinal(plain);
+		ciphertext = Arrays.copyOf(sealed, LENGTH);
+		tag = Arrays.copyOfRange(sealed, LENGTH, sealed.length);
+	}
+
+	/**
+	 * Test cases 3, 14 and 15 of McGrew and Viega, "The Galois/Counter Mode of Operation". Their 12 byte IVs are
+	 * replaced by the 16 byte IV with the same pre-counter block, as crypt15 only uses 16 byte IVs.
+	 */
+	@ParameterizedTest
+	@CsvSource({
+		"feffe9928665731c6d6a8f9467308308, cafebabefacedbaddecaf888, "
+				+ "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a721c3c0c95956809532fcf0e2449a6b525"
+				+ "b16aedf5aa0de657ba637b391aafd255, "
+				+ "42831ec2217774244b7221b784d0d49ce3aa212f2c02a4e035c17e2329aca12e21d514b25466931c7d8f6a5aac84aa05"
+				+ "1ba30b396a0aac973d58e091473f5985, "
+				+ "4d5c2af327cd64a62cf35abd2ba6fab4",
+		"0000000000000000000000000000000000000000000000000000000000000000, 000000000000000000000000, "
+				+ "00000000000000000000000000000000, cea7403d4d606b6e074ec5d3baf39d18, "
+				+ "d0d1c8a799996bf0265b98b5d48ab919",
+		"feffe9928665731c6d6a8f9467308308feffe9928665731c6d6a8f9467308308, cafebabefacedbaddecaf888, "
+				+ "d9313225f88406e5a55909c5aff5269a86a7a9531534f7da2e4c303d8a318a721c3c0c95956809532fcf0e2449a6b525"
+				+ "b16aedf5aa0de657ba637b391aafd255, "
+				+ "522dc1f099567d07f47f37a32a84427d643a8cdcbfe5c0c97598a2bd2555d1aa8cb08e48590dbb3da7b08b1056828838"
+				+ "c5f61e6393ba7a0abcc9f662898015ad, "
+				+ "b094dac5d93471bdec1a502270e3cc6c"
+	})
+	void decryptsTestVector(String keyHex, String ivHex, String plainHex, String ciphertextHex, String tagHex)
+			throws Exception {
+		byte[] vectorKey = fromHex(keyHex);
+		byte[] j0 = Arrays.copyOf(fromHex(ivHex), 16);
+		j0[15] = 1;
+		byte[] c = fromHex(ciphertextHex);
+
+		GcmDecryptor gcm = new GcmDecryptor(vectorKey, TestBackups.ivFor(vectorKey, j0));
+		byte[] p = new byte[c.length];
+		gcm.update(c, 0, c.length, p, 0);
+
+		assertArrayEquals(fromHex(plainHex), p);
+		assertTrue(gcm.verify(fromHex(tagHex)));
+	}
+
+	@Test
+	void decryptsInPieces() throws Exception {
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		byte[] out = new byte[LENGTH];
+		for(int pos = 0, i = 0; pos < LENGTH; i++) {
+			int n = Math.min(PIECE_SIZES[i % PIECE_SIZES.length], LENGTH - pos);
+			gcm.update(ciphertext, pos, n, out, pos);
+			pos += n;
+		}
+
+		assertArrayEquals(plain, out);
+		assertTrue(gcm.verify(tag));
+	}
+
+	@Test
+	void decryptsInPlace() throws Exception {
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		byte[] data = ciphertext.clone();
+		gcm.update(data, 0, data.length, data, 0);
+
+		assertArrayEquals(plain, data);
+		assertTrue(gcm.verify(tag));
+	}
+
+	@Test
+	void decryptsDirectBuffers() throws Exception {
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		ByteBuffer in = ByteBuffer.allocateDirect(LENGTH);
+		in.put(ciphertext).flip();
+		ByteBuffer out = ByteBuffer.allocateDirect(LENGTH);
+		while(in.hasRemaining()) {
+			ByteBuffer piece = in.slice();
+			piece.limit(Math.min(piece.limit(), 8191));
+			in.position(in.position() + piece.remaining());
+			gcm.update(piece, out);
+		}
+		out.flip();
+
+		assertEquals(ByteBuffer.wrap(plain), out);
+		assertTrue(gcm.verify(tag));
+	}
+
+	@Test
+	void combinesSegments() throws Exception {
+		int segmentSize = 16 * 1024;
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		byte[] out = new byte[LENGTH];
+		for(int start = 0; start < LENGTH; start += segmentSize) {
+			GcmDecryptor segment = gcm.segment(start);
+			segment.update(ciphertext, start, Math.min(segmentSize, LENGTH - start), out, start);
+			gcm.append(segment);
+		}
+
+		assertArrayEquals(plain, out);
+		assertTrue(gcm.verify(tag));
+	}
+
+	@Test
+	void rejectsUnalignedSegment() throws Exception {
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		assertThrows(IllegalArgumentException.class, () -> gcm.segment(8));
+	}
+
+	@Test
+	void authenticatesWithoutDecrypting() throws Exception {
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		gcm.authenticate(ciphertext, 0, 1000);
+		gcm.authenticate(ciphertext, 1000, LENGTH - 1000);
+
+		assertTrue(gcm.verify(tag));
+	}
+
+	@Test
+	void rejectsChangedCiphertext() throws Exception {
+		byte[] changed = ciphertext.clone();
+		changed[BLOCKS_BEFORE_WRAP * 16 + 100] ^= 1;
+
+		GcmDecryptor gcm = new GcmDecryptor(key, iv);
+		gcm.update(changed, 0, LENGTH, new byte[LENGTH], 0);
+
+		assertFalse(gcm.verify(tag));
+	}
+
+	@Test
+	void decryptsOnPool() throws Exception {
+		ForkJoinPool pool = new ForkJoinPool(2);
+		try {
+			byte[] out = new ParallelGcmDecryptor(key, iv, pool).decrypt(ciphertext, 0, LENGTH, tag);
+			assertArrayEquals(plain, out);
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	@Test
+	void rejectsChangedTagOnPool() throws Exception {
+		byte[] changed = tag.clone();
+		changed[0] ^= 1;
+
+		ParallelGcmDecryptor decryptor = new ParallelGcmDecryptor(key, iv, ForkJoinPool.commonPool());
+		assertThrows(WhatsappBackupReaderException.class, () -> decryptor.decrypt(ciphertext, 0, LENGTH, changed));
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] b = new byte[hex.length() / 2];
+		for(int i = 0; i < b.length; i++) {
+			b[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+		}
+		return b;
+	}
+}
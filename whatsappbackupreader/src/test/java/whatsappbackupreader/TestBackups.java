@@ -0,0 +1,304 @@
+package whatsappbackupreader;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.protobuf.ByteString;
+
+import whatsappbackupreader.protos.BackupExpiryOuterClass.BackupExpiry;
+import whatsappbackupreader.protos.BackupPrefixOuterClass.BackupPrefix;
+import whatsappbackupreader.protos.C15IV.C15_IV;
+
+/**
+ * Creates crypt15 backups for the tests. The content is encrypted with the JDK's AES/GCM/NoPadding, so the
+ * decryptors of this library are checked against an independent implementation.
+ */
+final class TestBackups {
+
+	static final String KEY = "3a1f6c9e0b7d42e58f1a6b3c9d0e7f215c4b8a7d6e9f0a1b2c3d4e5f60718293";
+	static final String APP_VERSION = "2.23.1.1";
+
+	private static final int PAGE_SIZE = 4096;
+	private static final int LENGTH_TRAILER = 32;
+
+	private TestBackups() {
+	}
+
+	static BackupKey key() throws WhatsappBackupReaderException {
+		return BackupKey.of(KEY);
+	}
+
+	/**
+	 * @return an SQLite-like database, whose pages alternate between text and random bytes, so it compresses
+	 *         to roughly half of its size
+	 */
+	static byte[] database(int pages, long seed) {
+		Random random = new Random(seed);
+		byte[] db = new byte[pages * PAGE_SIZE];
+		for(int page = 0; page < pages; page++) {
+			int start = page * PAGE_SIZE;
+			if(page % 2 == 0) {
+				for(int i = start; i < start + PAGE_SIZE; i++) {
+					db[i] = (byte) ('a' + random.nextInt(8));
+				}
+			} else {
+				byte[] b = new byte[PAGE_SIZE];
+				random.nextBytes(b);
+				System.arraycopy(b, 0, db, start, PAGE_SIZE);
+			}
+		}
+
+		byte[] magic = "SQLite format 3\0".getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(magic, 0, db, 0, magic.length);
+		db[16] = (byte) (PAGE_SIZE >> 8);
+		db[17] = (byte) PAGE_SIZE;
+		db[18] = 1;
+		db[19] = 1;
+		putInt(db, 24, 1);
+		putInt(db, 28, pages);
+		putInt(db, 92, 1);
+		return db;
+	}
+
+	static byte[] randomIv(long seed) {
+		byte[] iv = new byte[16];
+		new Random(seed).nextBytes(iv);
+		return iv;
+	}
+
+	/**
+	 * @return the crypt15 file of the database: header, compressed and encrypted database, tag and md5 checksum
+	 */
+	static byte[] encrypt(byte[] database, byte[] iv) throws IOException, GeneralSecurityException,
+			WhatsappBackupReaderException {
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+		try(OutputStream out = new DeflaterOutputStream(compressed, new Deflater(Deflater.BEST_SPEED))) {
+			out.write(database);
+		}
+
+		Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+		cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key().getAesKey(), "AES"), new GCMParameterSpec(128, iv));
+		byte[] sealed = cipher.doFinal(compressed.toByteArray());
+
+		ByteArrayOutputStream file = new ByteArrayOutputStream();
+		file.write(header(iv));
+		file.write(sealed);
+		file.write(MessageDigest.getInstance("MD5").digest(file.toByteArray()));
+		return file.toByteArray();
+	}
+
+	static byte[] header(byte[] iv) {
+		BackupPrefix prefix = BackupPrefix.newBuilder()
+				.setC15Iv(C15_IV.newBuilder().setIV(ByteString.copyFrom(iv)))
+				.setInfo(BackupExpiry.newBuilder().setAppVersion(APP_VERSION).setJidSuffix("42").setBackupVersion(1)
+						.setF5(true))
+				.build();
+		byte[] protobuf = prefix.toByteArray();
+
+		byte[] header = new byte[2 + protobuf.length];
+		header[0] = (byte) protobuf.length;
+		header[1] = 1;
+		System.arraycopy(protobuf, 0, header, 2, protobuf.length);
+		return header;
+	}
+
+	/**
+	 * @return the file with a changed byte in the authentication tag and a matching md5 checksum
+	 */
+	static byte[] withBadTag(byte[] file) throws GeneralSecurityException {
+		byte[] bad = file.clone();
+		bad[bad.length - LENGTH_TRAILER] ^= 1;
+		return withChecksum(bad);
+	}
+
+	/**
+	 * @return the file with a changed byte in the md5 checksum
+	 */
+	static byte[] withBadChecksum(byte[] file) {
+		byte[] bad = file.clone();
+		bad[bad.length - 1] ^= 1;
+		return bad;
+	}
+
+	/**
+	 * @return the file with a changed byte in the encrypted database, so that checksum and tag do not match
+	 */
+	static byte[] withBadCiphertext(byte[] file, int offset) {
+		byte[] bad = file.clone();
+		bad[offset] ^= 1;
+		return bad;
+	}
+
+	private static byte[] withChecksum(byte[] file) throws GeneralSecurityException {
+		MessageDigest md5 = MessageDigest.getInstance("MD5");
+		md5.update(file, 0, file.length - 16);
+		byte[] checksum = md5.digest();
+		System.arraycopy(checksum, 0, file, file.length - 16, checksum.length);
+		return file;
+	}
+
+	static Path write(Path dir, String name, byte[] data) throws IOException {
+		return Files.write(dir.resolve(name), data);
+	}
+
+	static byte[] zip(String name, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(ZipOutputStream zip = new ZipOutputStream(bytes)) {
+			zip.putNextEntry(new ZipEntry("README.txt"));
+			zip.write("not a backup".getBytes(StandardCharsets.US_ASCII));
+			zip.putNextEntry(new ZipEntry(name));
+			zip.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * @return a ustar archive with a text file and the given entry
+	 */
+	static byte[] tar(String name, byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		writeTarEntry(bytes, "README.txt", "not a backup".getBytes(StandardCharsets.US_ASCII));
+		writeTarEntry(bytes, name, data);
+		bytes.write(new byte[2 * 512]);
+		return bytes.toByteArray();
+	}
+
+	static byte[] gzip(byte[] data) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try(OutputStream out = new GZIPOutputStream(bytes)) {
+			out.write(data);
+		}
+		return bytes.toByteArray();
+	}
+
+	private static void writeTarEntry(OutputStream out, String name, byte[] data) throws IOException {
+		byte[] header = new byte[512];
+		putString(header, 0, name);
+		putString(header, 100, "0000644");
+		putString(header, 108, "0001750");
+		putString(header, 116, "0001750");
+		putString(header, 124, String.format("%011o", data.length));
+		putString(header, 136, String.format("%011o", 0));
+		header[156] = '0';
+		putString(header, 257, "ustar");
+		putString(header, 263, "00");
+
+		Arrays.fill(header, 148, 156, (byte) ' ');
+		int checksum = 0;
+		for(byte b : header) {
+			checksum += b & 0xff;
+		}
+		putString(header, 148, String.format("%06o", checksum));
+
+		out.write(header);
+		out.write(data);
+		out.write(new byte[(512 - data.length % 512) % 512]);
+	}
+
+	private static void putString(byte[] b, int offset, String s) {
+		byte[] bytes = s.getBytes(StandardCharsets.US_ASCII);
+		System.arraycopy(bytes, 0, b, offset, bytes.length);
+	}
+
+	private static void putInt(byte[] b, int offset, int value) {
+		b[offset] = (byte) (value >>> 24);
+		b[offset + 1] = (byte) (value >>> 16);
+		b[offset + 2] = (byte) (value >>> 8);
+		b[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * @return a 16 byte IV whose pre-counter block j0 has the given lower 32 bits, e.g. to make the block counter
+	 *         wrap around after a few blocks
+	 */
+	static byte[] ivWithCounter(byte[] aesKey, long seed, int counter) throws GeneralSecurityException {
+		byte[] j0 = randomIv(seed);
+		putInt(j0, 12, counter);
+		return ivFor(aesKey, j0);
+	}
+
+	/**
+	 * Finds the 16 byte IV whose GHASH is the given pre-counter block, e.g. to use a test vector with a 12 byte IV,
+	 * whose j0 is IV || 00000001. With a single IV block X, j0 = ((X * H) xor L) * H, L being the length block, so
+	 * X = ((j0 * H^-1) xor L) * H^-1.
+	 */
+	static byte[] ivFor(byte[] aesKey, byte[] j0) throws GeneralSecurityException {
+		Cipher ecb = Cipher.getInstance("AES/ECB/NoPadding");
+		ecb.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(aesKey, "AES"));
+		long[] hInverse = inverse(toLongs(ecb.doFinal(new byte[16])));
+
+		long[] x = multiply(toLongs(j0), hInverse);
+		x[1] ^= 128;
+		x = multiply(x, hInverse);
+
+		byte[] iv = new byte[16];
+		for(int i = 0; i < 8; i++) {
+			iv[i] = (byte) (x[0] >>> (56 - 8 * i));
+			iv[8 + i] = (byte) (x[1] >>> (56 - 8 * i));
+		}
+		return iv;
+	}
+
+	private static long[] toLongs(byte[] b) {
+		long[] x = new long[2];
+		for(int i = 0; i < 16; i++) {
+			x[i / 8] = (x[i / 8] << 8) | (b[i] & 0xff);
+		}
+		return x;
+	}
+
+	/**
+	 * Multiplication in GF(2^128) with the bit order of GCM, as in NIST SP 800-38D, algorithm 1.
+	 */
+	private static long[] multiply(long[] x, long[] y) {
+		long zh = 0;
+		long zl = 0;
+		long vh = y[0];
+		long vl = y[1];
+		for(int i = 0; i < 128; i++) {
+			long bit = i < 64 ? x[0] >>> (63 - i) : x[1] >>> (127 - i);
+			if((bit & 1) != 0) {
+				zh ^= vh;
+				zl ^= vl;
+			}
+			boolean carry = (vl & 1) != 0;
+			vl = (vl >>> 1) | (vh << 63);
+			vh >>>= 1;
+			if(carry) {
+				vh ^= 0xe100000000000000L;
+			}
+		}
+		return new long[] { zh, zl };
+	}
+
+	/**
+	 * @return y^(2^128 - 2), the inverse of y
+	 */
+	private static long[] inverse(long[] y) {
+		long[] result = { 0x8000000000000000L, 0 };
+		for(int bit = 127; bit >= 0; bit--) {
+			result = multiply(result, result);
+			if(bit > 0) {
+				result = multiply(result, y);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,255 @@
+package whatsappbackupreader;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+/**
+ * Decrypts backups encrypted by the JDK in every {@link DecryptionMode} and checks that corrupt backups are
+ * rejected without leaving output behind.
+ */
+class WhatsappBackupReaderTest {
+
+	/** Small enough that the file is read in many chunks. */
+	private static final int CHUNK_SIZE = 8 * 1024;
+	private static final int BLOCKS_BEFORE_WRAP = 5000;
+
+	private static byte[] database;
+	private static byte[] backup;
+	private static int headerLength;
+
+	@TempDir
+	Path dir;
+
+	/**
+	 * The block counter of the backup wraps around after a fifth of its ciphertext.
+	 */
+	@BeforeAll
+	static void createBackup() throws Exception {
+		database = TestBackups.database(160, 1);
+		byte[] iv = TestBackups.ivWithCounter(TestBackups.key().getAesKey(), 1, -1 - BLOCKS_BEFORE_WRAP);
+		backup = TestBackups.encrypt(database, iv);
+		headerLength = TestBackups.header(iv).length;
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsBackup(DecryptionMode mode) throws Exception {
+		Path output = dir.resolve("msgstore.db");
+		decrypt(mode, backup, output);
+
+		assertArrayEquals(database, Files.readAllBytes(output));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void replacesExistingOutput(DecryptionMode mode) throws Exception {
+		Path output = TestBackups.write(dir, "msgstore.db", new byte[2 * database.length]);
+		decrypt(mode, backup, output);
+
+		assertArrayEquals(database, Files.readAllBytes(output));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsToStream(DecryptionMode mode) throws Exception {
+		Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", backup);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(WhatsappBackupReader reader = newReader(crypt, dir.resolve("unused.db"), mode)) {
+			reader.decrypt(out);
+		}
+
+		assertArrayEquals(database, out.toByteArray());
+		assertFalse(Files.exists(dir.resolve("unused.db")));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void decryptsToChannel(DecryptionMode mode) throws Exception {
+		Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", backup);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try(WhatsappBackupReader reader = newReader(crypt, dir.resolve("unused.db"), mode)) {
+			reader.decrypt(Channels.newChannel(out));
+		}
+
+		assertArrayEquals(database, out.toByteArray());
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void rejectsBadTag(DecryptionMode mode) throws Exception {
+		assertRejected(mode, TestBackups.withBadTag(backup));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void rejectsBadChecksum(DecryptionMode mode) throws Exception {
+		assertRejected(mode, TestBackups.withBadChecksum(backup));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void rejectsChangedCiphertext(DecryptionMode mode) throws Exception {
+		assertRejected(mode, TestBackups.withBadCiphertext(backup, backup.length / 2));
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void rejectsTruncatedBackup(DecryptionMode mode) throws Exception {
+		for(int length : new int[] { 1, headerLength - 1, headerLength + 10, backup.length / 2, backup.length - 20 }) {
+			assertRejected(mode, Arrays.copyOf(backup, length));
+		}
+	}
+
+	/**
+	 * A file that holds a header, but no complete tag, must not reach the cipher while the checksum is still
+	 * being computed.
+	 */
+	@ParameterizedTest
+	@EnumSource(value = ChecksumVerification.class)
+	void rejectsTruncatedBackupInMemory(ChecksumVerification verification) throws Exception {
+		for(DecryptionMode mode : new DecryptionMode[] { DecryptionMode.IN_MEMORY, DecryptionMode.PARALLEL }) {
+			for(int length : new int[] { headerLength, headerLength + 10, headerLength + 31, headerLength + 32 }) {
+				Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", Arrays.copyOf(backup, length));
+				try(WhatsappBackupReader reader = newReader(crypt, dir.resolve("msgstore.db"), mode)) {
+					reader.setChecksumVerification(verification);
+					assertThrows(WhatsappBackupReaderException.class, reader::decrypt, mode + ", length " + length);
+				}
+				assertOnlyFiles("msgstore.db.crypt15");
+			}
+		}
+	}
+
+	@ParameterizedTest
+	@EnumSource(DecryptionMode.class)
+	void keepsExistingOutputOnFailure(DecryptionMode mode) throws Exception {
+		byte[] previous = { 1, 2, 3 };
+		Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", TestBackups.withBadTag(backup));
+		Path output = TestBackups.write(dir, "msgstore.db", previous);
+		try(WhatsappBackupReader reader = newReader(crypt, output, mode)) {
+			assertThrows(WhatsappBackupReaderException.class, reader::decrypt);
+		}
+
+		assertArrayEquals(previous, Files.readAllBytes(output));
+		assertOnlyFiles("msgstore.db.crypt15", "msgstore.db");
+	}
+
+	@ParameterizedTest
+	@EnumSource(value = ChecksumVerification.class)
+	void verifiesChecksumInMemory(ChecksumVerification verification) throws Exception {
+		for(DecryptionMode mode : new DecryptionMode[] { DecryptionMode.IN_MEMORY, DecryptionMode.PARALLEL }) {
+			Path output = dir.resolve("msgstore.db");
+			Files.deleteIfExists(output);
+			decrypt(mode, verification, backup, output);
+			assertArrayEquals(database, Files.readAllBytes(output));
+
+			Files.delete(output);
+			Path crypt = TestBackups.write(dir, "bad.crypt15", TestBackups.withBadChecksum(backup));
+			try(WhatsappBackupReader reader = newReader(crypt, output, mode)) {
+				reader.setChecksumVerification(verification);
+				assertThrows(WhatsappBackupReaderException.class, reader::decrypt);
+			}
+			// only FAIL_AT_END keeps the output, as its tag has been checked
+			assertEquals(verification == ChecksumVerification.FAIL_AT_END, Files.exists(output));
+		}
+	}
+
+	@Test
+	void verifiesBackup() throws Exception {
+		VerificationResult result = verify(backup);
+		assertTrue(result.isChecksumValid());
+		assertTrue(result.isTagValid());
+		assertEquals(TestBackups.APP_VERSION, result.getAppVersion());
+
+		result = verify(TestBackups.withBadTag(backup));
+		assertTrue(result.isChecksumValid());
+		assertFalse(result.isTagValid());
+
+		result = verify(TestBackups.withBadChecksum(backup));
+		assertFalse(result.isChecksumValid());
+		assertTrue(result.isTagValid());
+
+		assertFalse(Files.exists(dir.resolve("unused.db")));
+	}
+
+	@Test
+	void rejectsWrongKey() throws Exception {
+		Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", backup);
+		Path output = dir.resolve("msgstore.db");
+		BackupKey wrongKey = BackupKey.of(TestBackups.KEY.replace('a', 'b'));
+		try(WhatsappBackupReader reader = new WhatsappBackupReader(crypt, wrongKey, output)) {
+			assertThrows(WhatsappBackupReaderException.class, reader::decrypt);
+		}
+
+		assertFalse(Files.exists(output));
+	}
+
+	@Test
+	void cannotBeUsedAfterClose() throws Exception {
+		Path crypt = TestBackups.write(dir, "msgstore.db.crypt15", backup);
+		WhatsappBackupReader reader = newReader(crypt, dir.resolve("msgstore.db"), DecryptionMode.IN_MEMORY);
+		reader.close();
+
+		assertThrows(IllegalStateException.class, reader::decrypt);
+	}
+
+	private void decrypt(DecryptionMode mode, byte[] crypt, Path output) throws Exception {
+		decrypt(mode, ChecksumVerification.BEFORE_DECRYPTION, crypt, output);
+	}
+
+	private void decrypt(DecryptionMode mode, ChecksumVerification verification, byte[] crypt, Path output)
+			throws Exception {
+		Path cryptPath = TestBackups.write(dir, "msgstore.db.crypt15", crypt);
+		try(WhatsappBackupReader reader = newReader(cryptPath, output, mode)) {
+			reader.setChecksumVerification(verification);
+			reader.decrypt();
+		}
+	}
+
+	private void assertRejected(DecryptionMode mode, byte[] crypt) throws Exception {
+		Path cryptPath = TestBackups.write(dir, "msgstore.db.crypt15", crypt);
+		Path output = dir.resolve("msgstore.db");
+		try(WhatsappBackupReader reader = newReader(cryptPath, output, mode)) {
+			assertThrows(WhatsappBackupReaderException.class, reader::decrypt, "length " + crypt.length);
+		}
+
+		assertOnlyFiles("msgstore.db.crypt15");
+	}
+
+	private VerificationResult verify(byte[] crypt) throws Exception {
+		Path cryptPath = TestBackups.write(dir, "msgstore.db.crypt15", crypt);
+		try(WhatsappBackupReader reader = newReader(cryptPath, dir.resolve("unused.db"), DecryptionMode.IN_MEMORY)) {
+			return reader.verify();
+		}
+	}
+
+	private void assertOnlyFiles(String... names) throws Exception {
+		try(Stream<Path> files = Files.list(dir)) {
+			assertEquals(Stream.of(names).sorted().collect(Collectors.toList()),
+					files.map(p -> p.getFileName().toString()).sorted().collect(Collectors.toList()));
+		}
+	}
+
+	static WhatsappBackupReader newReader(Path crypt, Path output, DecryptionMode mode) throws Exception {
+		WhatsappBackupReader reader = new WhatsappBackupReader(crypt, TestBackups.key(), output);
+		reader.setDecryptionMode(mode);
+		reader.setChunkSize(CHUNK_SIZE);
+		return reader;
+	}
+}